@@ -0,0 +1,42 @@
+package carrega;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Distribució de Zipf sobre els índexs 0..n-1. L'índex 0 és el més probable,
+ * i com més gran és l'exponent més concentrada està la distribució.
+ */
+public class DistribucioZipf {
+
+    private final double[] acumulats;
+
+    /**
+     * @param n Nombre d'elements
+     * @param exponent Exponent de la distribució. 0 és una distribució uniforme
+     */
+    public DistribucioZipf(int n, double exponent) {
+        acumulats = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1 / Math.pow(i + 1, exponent);
+            acumulats[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            acumulats[i] /= total;
+        }
+    }
+
+    /**
+     * Retorna un índex aleatori seguint la distribució
+     * @param random Generador de nombres aleatoris del fil que crida
+     * @return Índex entre 0 i n-1
+     */
+    public int seguent(Random random) {
+        int posicio = Arrays.binarySearch(acumulats, random.nextDouble());
+        if (posicio < 0) {
+            posicio = -posicio - 1;
+        }
+        return Math.min(posicio, acumulats.length - 1);
+    }
+}
@@ -0,0 +1,85 @@
+package carrega;
+
+import empresa.Dept;
+import empresa.Emp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Genera dades sintètiques d'una empresa per a les proves de càrrega. La mida
+ * dels departaments segueix una distribució de Zipf, de manera que uns pocs
+ * departaments tenen la majoria d'empleats, i dins de cada departament els
+ * empleats formen un arbre de caps que penja del director general.
+ */
+public class GeneradorEmpresa {
+
+    private static final String[] COGNOMS = {"Garcia", "Martínez", "López", "Puig", "Vidal",
+        "Ferrer", "Sánchez", "Pérez", "Roig", "Serra", "Font", "Mas", "Gómez", "Ruiz",
+        "Castell", "Riera", "Domènech", "Muñoz", "Oliver", "Bonet"};
+    private static final String[] OFICIS = {"Analista", "Programador", "Venedor",
+        "Administratiu", "Director", "Comptable", "Tècnic de suport", "Enginyer"};
+    private static final String[] NOMS_DEPT = {"Administració", "Comptabilitat", "Vendes",
+        "Producció", "Investigació", "Màrqueting", "Logística", "Informàtica"};
+    private static final String[] LOCALITATS = {"Palma", "Barcelona", "València", "Girona",
+        "Maó", "Eivissa", "Lleida", "Tarragona"};
+
+    private final Random random;
+
+    /**
+     * @param llavor Llavor del generador, perquè les dades siguin reproduïbles
+     */
+    public GeneradorEmpresa(long llavor) {
+        this.random = new Random(llavor);
+    }
+
+    /**
+     * Genera els departaments amb els seus empleats. El primer empleat del
+     * primer departament és el director general i no té cap.
+     * @param numDepts Nombre de departaments
+     * @param numEmps Nombre total d'empleats
+     * @param asimetria Exponent de Zipf de la mida dels departaments
+     * @return Llista de departaments, cadascun amb els seus empleats
+     */
+    public List<Dept> genera(int numDepts, int numEmps, double asimetria) {
+        List<Dept> departaments = new ArrayList<>();
+        for (int i = 1; i <= numDepts; i++) {
+            departaments.add(new Dept("d" + i, tria(NOMS_DEPT) + " " + i,
+                    random.nextInt(4) == 0 ? null : tria(LOCALITATS)));
+        }
+
+        DistribucioZipf mida = new DistribucioZipf(numDepts, asimetria);
+        String director = null;
+        for (int i = 1; i <= numEmps; i++) {
+            Dept departament = director == null ? departaments.get(0)
+                    : departaments.get(mida.seguent(random));
+            List<Emp> empleats = departament.getEmpleats();
+
+            //El primer empleat de cada departament depèn del director general i
+            //els altres d'un empleat anterior del mateix departament
+            String cap = empleats.isEmpty() ? director
+                    : empleats.get(random.nextInt(empleats.size())).getCodi();
+            Emp empleat = new Emp("e" + i, departament.getCodi(), cap,
+                    tria(COGNOMS) + " " + tria(COGNOMS), tria(OFICIS), generaData(),
+                    1000L + random.nextInt(4000),
+                    random.nextInt(3) == 0 ? (long) random.nextInt(1000) : null);
+            departament.addEmpleat(empleat);
+            if (director == null) {
+                director = empleat.getCodi();
+            }
+        }
+        return departaments;
+    }
+
+    private String tria(String[] valors) {
+        return valors[random.nextInt(valors.length)];
+    }
+
+    /**
+     * @return Data d'alta aleatòria amb el format dd-MM-yyyy
+     */
+    private String generaData() {
+        return String.format("%02d-%02d-%d", 1 + random.nextInt(28), 1 + random.nextInt(12),
+                1990 + random.nextInt(30));
+    }
+}
@@ -0,0 +1,98 @@
+package carrega;
+
+/**
+ * Histograma de latències amb cubetes log-lineals, a l'estil d'HdrHistogram.
+ * Cada potència de dos es divideix en 64 cubetes, així l'error relatiu dels
+ * percentils és inferior a l'1,6% amb una mida fixa de memòria. No és segur
+ * entre fils: cada fil ha de fer servir el seu i combinar-los al final.
+ */
+public class HistogramaLatencies {
+
+    private static final int BITS_SUBCUBETA = 6;
+    private static final int SUBCUBETES = 1 << BITS_SUBCUBETA;
+
+    private final long[] comptes = new long[(64 - BITS_SUBCUBETA + 1) * SUBCUBETES];
+    private long compte;
+    private long suma;
+    private long maxim;
+
+    /**
+     * Registra una latència
+     * @param micros Latència en microsegons
+     */
+    public void registra(long micros) {
+        long valor = Math.max(0, micros);
+        comptes[index(valor)]++;
+        compte++;
+        suma += valor;
+        maxim = Math.max(maxim, valor);
+    }
+
+    /**
+     * Afegeix tots els valors d'un altre histograma a aquest
+     * @param altre Histograma a afegir
+     */
+    public void afegeix(HistogramaLatencies altre) {
+        for (int i = 0; i < comptes.length; i++) {
+            comptes[i] += altre.comptes[i];
+        }
+        compte += altre.compte;
+        suma += altre.suma;
+        maxim = Math.max(maxim, altre.maxim);
+    }
+
+    public long getCompte() {
+        return compte;
+    }
+
+    public long getMaxim() {
+        return maxim;
+    }
+
+    public double getMitjana() {
+        return compte == 0 ? 0 : (double) suma / compte;
+    }
+
+    /**
+     * Calcula un percentil
+     * @param percentil Percentil entre 0 i 100
+     * @return Límit superior de la cubeta on cau el percentil, en microsegons
+     */
+    public long getPercentil(double percentil) {
+        if (compte == 0) {
+            return 0;
+        }
+        long objectiu = Math.max(1, (long) Math.ceil(compte * percentil / 100));
+        long acumulat = 0;
+        for (int i = 0; i < comptes.length; i++) {
+            acumulat += comptes[i];
+            if (acumulat >= objectiu) {
+                return Math.min(limitSuperior(i), maxim);
+            }
+        }
+        return maxim;
+    }
+
+    /**
+     * Els valors petits tenen una cubeta cadascun. A partir de SUBCUBETES, el
+     * grup el marca la posició del bit més alt i la cubeta dins del grup els
+     * sis bits que el segueixen.
+     */
+    private static int index(long valor) {
+        if (valor < SUBCUBETES) {
+            return (int) valor;
+        }
+        int grup = 63 - Long.numberOfLeadingZeros(valor) - BITS_SUBCUBETA;
+        int subcubeta = (int) (valor >>> grup) - SUBCUBETES;
+        return SUBCUBETES + grup * SUBCUBETES + subcubeta;
+    }
+
+    private static long limitSuperior(int index) {
+        if (index < SUBCUBETES) {
+            return index;
+        }
+        int grup = (index - SUBCUBETES) / SUBCUBETES;
+        long subcubeta = (index - SUBCUBETES) % SUBCUBETES + SUBCUBETES;
+        return ((subcubeta + 1) << grup) - 1;
+    }
+}
@@ -0,0 +1,416 @@
+package carrega;
+
+import empresa.Dept;
+import empresa.Emp;
+import gestorbasex.ConflicteVersioException;
+import gestorbasex.EnrutadorGestorDB;
+import gestorbasex.GestorDB;
+import gestorbasex.SenseConnexioException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.basex.api.client.ClientSession;
+import org.basex.core.BaseXException;
+
+/**
+ * Prova de càrrega de GestorDB contra una instància local de BaseX. Diversos
+ * fils executen una barreja configurable de lectures i escriptures a través
+ * d'un EnrutadorGestorDB, i al final es mostra un informe de latències per
+ * operació. Amb replicas=host:port,host:port les lectures es reparteixen entre
+ * aquests servidors. Amb mandros=true les connexions de l'enrutador s'obren
+ * en l'escalfament previ a la prova en lloc de fer-ho al constructor.
+ * 
+ * Els paràmetres es passen com a clau=valor. Amb genera=true es reemplaça la
+ * BD empresa per dades sintètiques, així que només s'ha d'executar contra una
+ * instància de proves.
+ * 
+ * Les actualitzacions incrementen el salari del director general amb
+ * updateEmp i reintents, i al final es comprova que no s'ha perdut cap
+ * increment. Si se n'ha perdut algun, o el salari ha augmentat més que els
+ * increments que poden haver-se aplicat, la prova acaba amb una excepció.
+ * Els increments que fallen per un error de connexió són incerts, perquè el
+ * servidor pot haver-los aplicat abans de perdre la connexió, i es compten a
+ * part.
+ */
+public class ProvaCarrega {
+
+    /**
+     * Operacions de la barreja, amb el seu pes dins de les lectures o de les
+     * escriptures
+     */
+    private enum Operacio {
+        GET_EMPLEAT(true, 40), GET_DEPT_SENSE_EMP(true, 20), GET_DEPT_AMB_EMP(true, 20),
+        EXISTEIX_DEPT(true, 10), EXISTEIX_EMP(true, 10),
+        UPDATE_EMP(false, 50), INSERT_DELETE_DEPT(false, 50);
+
+        private final boolean lectura;
+        private final int pes;
+
+        Operacio(boolean lectura, int pes) {
+            this.lectura = lectura;
+            this.pes = pes;
+        }
+    }
+
+    private final Map<String, String> config = new TreeMap<>();
+    private final AtomicLong incrementsFets = new AtomicLong();
+    private final AtomicLong conflictes = new AtomicLong();
+    private final AtomicLong incrementsIncerts = new AtomicLong();
+    private final Map<Operacio, AtomicLong> errors = new EnumMap<>(Operacio.class);
+    private List<String> codisDept;
+    private List<String> codisEmp;
+    private String director;
+
+    public static void main(String[] args) throws Exception {
+        ProvaCarrega prova = new ProvaCarrega();
+        for (Operacio operacio : Operacio.values()) {
+            prova.errors.put(operacio, new AtomicLong());
+        }
+        prova.config.put("host", "localhost");
+        prova.config.put("port", "1984");
+        prova.config.put("usuari", "admin");
+        prova.config.put("contrasenya", "admin");
+        prova.config.put("fils", "8");
+        prova.config.put("segons", "30");
+        prova.config.put("lectures", "0.9");
+        prova.config.put("genera", "false");
+        prova.config.put("departaments", "50");
+        prova.config.put("empleats", "5000");
+        prova.config.put("asimetria", "1.1");
+        prova.config.put("llavor", "42");
+        prova.config.put("replicas", "");
+        prova.config.put("balanceig", "MENYS_CARREGAT");
+        prova.config.put("lecturaPropiaMs", "1000");
+        prova.config.put("mandros", "false");
+        for (String arg : args) {
+            String[] parella = arg.split("=", 2);
+            if (parella.length != 2 || !prova.config.containsKey(parella[0])) {
+                System.err.println("Paràmetre desconegut: " + arg
+                        + ". Paràmetres vàlids: " + prova.config.keySet());
+                return;
+            }
+            prova.config.put(parella[0], parella[1]);
+        }
+        prova.executa();
+    }
+
+    private String text(String clau) {
+        return config.get(clau);
+    }
+
+    private int enter(String clau) {
+        return Integer.parseInt(config.get(clau));
+    }
+
+    private double decimal(String clau) {
+        return Double.parseDouble(config.get(clau));
+    }
+
+    private GestorDB nouGestor() {
+        return new GestorDB(text("host"), enter("port"), text("usuari"), text("contrasenya"));
+    }
+
+    private void executa() throws Exception {
+        System.out.println("Configuració: " + config);
+        if (Boolean.parseBoolean(text("genera"))) {
+            generaDades();
+        }
+        carregaCodis();
+
+        GestorDB gestor = nouGestor();
+        long salariInicial = salari(gestor.getEmpleat(director));
+        gestor.tancarSessio();
+
+        int numFils = enter("fils");
+        List<String> replicas = text("replicas").isEmpty() ? new ArrayList<>()
+                : Arrays.asList(text("replicas").split(","));
+        EnrutadorGestorDB enrutador = new EnrutadorGestorDB(text("host") + ":" + text("port"),
+                replicas, numFils, text("usuari"), text("contrasenya"),
+                EnrutadorGestorDB.Balanceig.valueOf(text("balanceig")),
+                Long.parseLong(text("lecturaPropiaMs")), Boolean.parseBoolean(text("mandros")));
+        int connexionsFallides = enrutador.escalfa(codisDept.get(0));
+        System.out.printf("Escalfament: %.1f ms, connexions fallides: %d%n",
+                enrutador.getTempsEscalfament() / 1e6, connexionsFallides);
+        long fi = System.nanoTime() + TimeUnit.SECONDS.toNanos(enter("segons"));
+        CountDownLatch inici = new CountDownLatch(1);
+        List<Map<Operacio, HistogramaLatencies>> histogrames = new ArrayList<>();
+        List<Thread> fils = new ArrayList<>();
+        for (int i = 0; i < numFils; i++) {
+            Map<Operacio, HistogramaLatencies> histogramesFil = new TreeMap<>();
+            histogrames.add(histogramesFil);
+            long llavor = Long.parseLong(text("llavor")) + i;
+            int numFil = i;
+            Thread fil = new Thread(() -> treballa(enrutador, numFil, llavor, fi, inici,
+                    histogramesFil), "carrega-" + i);
+            fils.add(fil);
+            fil.start();
+        }
+        long tempsInici = System.nanoTime();
+        inici.countDown();
+        for (Thread fil : fils) {
+            fil.join();
+        }
+        enrutador.tancarSessio();
+        double segons = (System.nanoTime() - tempsInici) / 1e9;
+
+        Map<Operacio, HistogramaLatencies> total = new TreeMap<>();
+        for (Map<Operacio, HistogramaLatencies> histogramesFil : histogrames) {
+            for (Map.Entry<Operacio, HistogramaLatencies> entrada : histogramesFil.entrySet()) {
+                total.computeIfAbsent(entrada.getKey(), o -> new HistogramaLatencies())
+                        .afegeix(entrada.getValue());
+            }
+        }
+        informe(total, segons);
+
+        gestor = nouGestor();
+        long salariFinal = salari(gestor.getEmpleat(director));
+        gestor.tancarSessio();
+        //Cada increment incert pot haver-se aplicat o no
+        long aplicatsIncerts = salariFinal - salariInicial - incrementsFets.get();
+        System.out.println("Increments: " + incrementsFets.get() + ", conflictes: "
+                + conflictes.get() + ", incerts: " + incrementsIncerts.get()
+                + ", incerts aplicats: " + aplicatsIncerts);
+        if (aplicatsIncerts < 0) {
+            throw new Exception("S'han perdut " + -aplicatsIncerts + " actualitzacions");
+        }
+        if (aplicatsIncerts > incrementsIncerts.get()) {
+            throw new Exception("S'han aplicat " + (aplicatsIncerts - incrementsIncerts.get())
+                    + " increments més dels que s'han fet");
+        }
+    }
+
+    /**
+     * Reemplaça la BD empresa per dades sintètiques
+     */
+    private void generaDades() throws Exception {
+        List<Dept> departaments = new GeneradorEmpresa(Long.parseLong(text("llavor")))
+                .genera(enter("departaments"), enter("empleats"), decimal("asimetria"));
+        ClientSession admin = new ClientSession(text("host"), enter("port"), text("usuari"),
+                text("contrasenya"));
+        admin.execute("CREATE DB empresa <empresa><departaments/><empleats/></empresa>");
+        admin.close();
+
+        GestorDB gestor = nouGestor();
+        long inici = System.nanoTime();
+        for (Dept departament : departaments) {
+            gestor.insertDept(departament);
+        }
+        gestor.tancarSessio();
+
+        //Les insercions invaliden els índexs d'atributs, sense els quals cada
+        //cerca per @codi recorreria tota la BD. OPTIMIZE els torna a crear
+        admin = new ClientSession(text("host"), enter("port"), text("usuari"),
+                text("contrasenya"));
+        admin.execute("OPEN empresa");
+        admin.execute("OPTIMIZE");
+        int numDepts = Integer.parseInt(
+                admin.execute("XQUERY count(/empresa/departaments/dept)").trim());
+        int numEmps = Integer.parseInt(
+                admin.execute("XQUERY count(/empresa/empleats/emp)").trim());
+        admin.close();
+
+        //insertDept no llança els errors, així que comprovam el que s'ha guardat
+        if (numDepts != departaments.size() || numEmps != enter("empleats")) {
+            throw new Exception("Només s'han guardat " + numDepts + " de "
+                    + departaments.size() + " departaments i " + numEmps + " de "
+                    + enter("empleats") + " empleats");
+        }
+        System.out.printf("Generats %d departaments i %d empleats en %.1f s%n",
+                numDepts, numEmps, (System.nanoTime() - inici) / 1e9);
+    }
+
+    /**
+     * Recupera els codis dels departaments i dels empleats que hi ha a la BD.
+     * Els departaments queden en l'ordre del document, així la distribució de
+     * Zipf de les lectures afavoreix els primers.
+     */
+    private void carregaCodis() throws Exception {
+        ClientSession admin = new ClientSession(text("host"), enter("port"), text("usuari"),
+                text("contrasenya"));
+        admin.execute("OPEN empresa");
+        codisDept = separa(admin.execute("XQUERY data(/empresa/departaments/dept/@codi)"));
+        codisEmp = separa(admin.execute("XQUERY data(/empresa/empleats/emp/@codi)"));
+        director = admin.execute("XQUERY data(/empresa/empleats/emp[not(@cap)][1]/@codi)");
+        admin.close();
+        if (codisDept.isEmpty() || codisEmp.isEmpty() || director.equals("")) {
+            throw new Exception("La BD empresa no té dades. Executa la prova amb genera=true");
+        }
+    }
+
+    private List<String> separa(String resultat) {
+        if (resultat.trim().isEmpty()) {
+            return new ArrayList<>();
+        }
+        return Arrays.asList(resultat.trim().split("\\s+"));
+    }
+
+    /**
+     * Cos de cada fil de la prova
+     */
+    private void treballa(EnrutadorGestorDB gestor, int numFil, long llavor, long fi,
+            CountDownLatch inici, Map<Operacio, HistogramaLatencies> histogrames) {
+        Random random = new Random(llavor);
+        DistribucioZipf departamentsCalents = new DistribucioZipf(codisDept.size(),
+                decimal("asimetria"));
+        double lectures = decimal("lectures");
+        int comptador = 0;
+        try {
+            inici.await();
+        } catch (InterruptedException ex) {
+            return;
+        }
+        while (System.nanoTime() < fi) {
+            Operacio operacio = triaOperacio(random, random.nextDouble() < lectures);
+            String codiDept = codisDept.get(departamentsCalents.seguent(random));
+            String codiEmp = codisEmp.get(random.nextInt(codisEmp.size()));
+            long t0 = System.nanoTime();
+            try {
+                executaOperacio(gestor, operacio, codiDept, codiEmp,
+                        "dc" + numFil + "_" + comptador++);
+            } catch (Exception ex) {
+                //Les operacions fallides no compten a les latències
+                errors.get(operacio).incrementAndGet();
+                System.err.println(Thread.currentThread().getName() + " " + operacio + ": " + ex);
+                continue;
+            }
+            long micros = (System.nanoTime() - t0) / 1000;
+            histogrames.computeIfAbsent(operacio, o -> new HistogramaLatencies())
+                    .registra(micros);
+        }
+    }
+
+    /**
+     * Executa una operació. Els codis que es fan servir existeixen a la BD, així
+     * que quan GestorDB retorna null o false en lloc de llançar l'error es
+     * considera que l'operació ha fallat
+     */
+    private void executaOperacio(EnrutadorGestorDB gestor, Operacio operacio, String codiDept,
+            String codiEmp, String codiNou) throws Exception {
+        switch (operacio) {
+            case GET_EMPLEAT:
+                gestor.getEmpleat(codiEmp);
+                break;
+            case GET_DEPT_SENSE_EMP:
+                comprova(gestor.getDeptSenseEmp(codiDept) != null, codiDept);
+                break;
+            case GET_DEPT_AMB_EMP:
+                comprova(gestor.getDeptAmbEmp(codiDept) != null, codiDept);
+                break;
+            case EXISTEIX_DEPT:
+                comprova(gestor.existeixDept(codiDept), codiDept);
+                break;
+            case EXISTEIX_EMP:
+                comprova(gestor.existeixEmp(codiEmp), codiEmp);
+                break;
+            case UPDATE_EMP:
+                incrementaSalari(gestor, director);
+                break;
+            case INSERT_DELETE_DEPT:
+                Dept departament = new Dept(codiNou, "Prova de càrrega");
+                gestor.insertDept(departament);
+                //insertDept només assigna la versió si ha pogut inserir
+                comprova(departament.getVersio() != null, codiNou);
+                gestor.deleteDept(departament);
+                break;
+        }
+    }
+
+    private void comprova(boolean correcte, String codi) throws Exception {
+        if (!correcte) {
+            throw new Exception("No s'ha pogut recuperar " + codi);
+        }
+    }
+
+    private Operacio triaOperacio(Random random, boolean lectura) {
+        int total = 0;
+        for (Operacio operacio : Operacio.values()) {
+            if (operacio.lectura == lectura) {
+                total += operacio.pes;
+            }
+        }
+        int valor = random.nextInt(total);
+        for (Operacio operacio : Operacio.values()) {
+            if (operacio.lectura == lectura) {
+                valor -= operacio.pes;
+                if (valor < 0) {
+                    return operacio;
+                }
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Incrementa en 1 el salari d'un empleat amb actualitzacions condicionals,
+     * tornant a llegir l'empleat cada cop que hi ha un conflicte. L'empleat es
+     * llegeix del primari perquè una rèplica endarrerida faria fallar sempre
+     * la comprovació de versió. Si l'actualització falla per un error de
+     * connexió es compta com a incerta i no es torna a intentar, perquè el
+     * servidor pot haver-la aplicat
+     */
+    private void incrementaSalari(EnrutadorGestorDB gestor, String codiEmp) throws Exception {
+        while (true) {
+            Emp actual = gestor.llegeixDelPrimari(g -> g.getEmpleat(codiEmp));
+            Emp nou = new Emp(actual.getCodi(), actual.getCodiDep(), actual.getCodiCap(),
+                    actual.getCognom(), actual.getOfici(), actual.getDataAlta(),
+                    salari(actual) + 1, actual.getComissio());
+            nou.setVersio(actual.getVersio());
+            try {
+                gestor.updateEmp(nou);
+                incrementsFets.incrementAndGet();
+                return;
+            } catch (ConflicteVersioException ex) {
+                conflictes.incrementAndGet();
+            } catch (IOException ex) {
+                //Sense connexió la consulta no s'ha enviat
+                if (!(ex instanceof BaseXException) && !(ex instanceof SenseConnexioException)) {
+                    incrementsIncerts.incrementAndGet();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    private long salari(Emp empleat) {
+        return empleat.getSalari() == null ? 0 : empleat.getSalari();
+    }
+
+    private void informe(Map<Operacio, HistogramaLatencies> histogrames, double segons) {
+        System.out.printf("%-20s %10s %10s %10s %10s %10s %10s %10s %10s %10s%n", "Operació",
+                "Compte", "Errors", "Op/s", "Mitjana", "p50", "p90", "p99", "p99.9", "Màxim");
+        HistogramaLatencies total = new HistogramaLatencies();
+        long totalErrors = 0;
+        for (Operacio operacio : Operacio.values()) {
+            HistogramaLatencies histograma = histogrames.get(operacio);
+            long errorsOperacio = errors.get(operacio).get();
+            if (histograma == null && errorsOperacio == 0) {
+                continue;
+            }
+            if (histograma == null) {
+                histograma = new HistogramaLatencies();
+            }
+            filaInforme(operacio.name(), histograma, errorsOperacio, segons);
+            total.afegeix(histograma);
+            totalErrors += errorsOperacio;
+        }
+        filaInforme("TOTAL", total, totalErrors, segons);
+        System.out.println("Latències en microsegons, només de les operacions correctes");
+    }
+
+    private void filaInforme(String nom, HistogramaLatencies histograma, long errors,
+            double segons) {
+        System.out.printf("%-20s %10d %10d %10.1f %10.1f %10d %10d %10d %10d %10d%n", nom,
+                histograma.getCompte(), errors, histograma.getCompte() / segons,
+                histograma.getMitjana(), histograma.getPercentil(50),
+                histograma.getPercentil(90), histograma.getPercentil(99),
+                histograma.getPercentil(99.9), histograma.getMaxim());
+    }
+}
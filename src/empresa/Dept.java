@@ -13,6 +13,8 @@ public class Dept {
     private String nom;
     private String localitat;
     private List<Emp> empleats;
+    //Versió del departament a la BD. Null si no s'ha recuperat de la BD
+    private Long versio;
 
     public Dept(String codi, String nom) {
         this(codi, nom, null);
@@ -55,6 +57,14 @@ public class Dept {
         this.empleats = empleats;
     }
     
+    public Long getVersio() {
+        return versio;
+    }
+
+    public void setVersio(Long versio) {
+        this.versio = versio;
+    }
+    
     public void addEmpleat(Emp empleat){
         empleats.add(empleat);
     }
@@ -72,7 +82,7 @@ public class Dept {
     
     @Override
     public String toString() {
-        return "Dept{" + "codi = " + codi + ",\nnom = " + nom + ",\nlocalitat = " + localitat + 
+        return "Dept{" + "codi = " + codi + ",\nversio = " + versio + ",\nnom = " + nom + ",\nlocalitat = " + localitat + 
                 ",\nempleats = {\n" + getInfoEmpleats() + "}";
     }
     
@@ -13,6 +13,8 @@ public class Emp {
     private String dataAlta;
     private Long salari;
     private Long comissio;
+    //Versió de l'empleat a la BD. Null si no s'ha recuperat de la BD
+    private Long versio;
     
     public Emp(String codi, String codiDep, String codiCap, String cognom, 
             String ofici, String dataAlta, Long salari, Long comissio) {
@@ -62,12 +64,21 @@ public class Emp {
     public Long getComissio() {
         return comissio;
     }
+
+    public Long getVersio() {
+        return versio;
+    }
+
+    public void setVersio(Long versio) {
+        this.versio = versio;
+    }
     
     @Override
     public String toString() {
         return "Emp{" + "codi = " + codi + ",\ncodiDep = " + codiDep + ",\ncodiCap = " + codiCap + 
                 ",\ncognom = " + cognom + ",\nofici = " + ofici + ",\ndataAlta = " + dataAlta + 
-                ",\nsalari = " + salari + ",\ncomissio = " + comissio + '}';
+                ",\nsalari = " + salari + ",\ncomissio = " + comissio + 
+                ",\nversio = " + versio + '}';
     }
     
     
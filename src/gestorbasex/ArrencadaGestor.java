@@ -0,0 +1,119 @@
+package gestorbasex;
+
+import empresa.Dept;
+import empresa.Emp;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fase d'escalfament d'un gestor abans de començar a servir peticions. Obre
+ * la connexió, executa un cop cadascuna de les consultes habituals, precarrega
+ * a la cache els departaments més consultats i executa els generadors d'XML
+ * perquè el JIT ja els hagi compilat quan arribin les primeres escriptures.
+ * 
+ * BaseX no guarda les consultes compilades entre execucions, així que
+ * executar-les un cop serveix per carregar les pàgines de la BD a memòria i
+ * per escalfar el codi del client i del servidor.
+ */
+public class ArrencadaGestor {
+
+    private final GestorDBAmbCache gestor;
+    private final int iteracionsJit;
+    private long tempsEscalfament = -1;
+    private long primeraConsultaEscalfament = -1;
+    private int departamentsPrecarregats;
+    private int empleatsPrecarregats;
+
+    /**
+     * @param gestor Gestor amb cache que es vol escalfar
+     * @param iteracionsJit Vegades que s'executen els generadors d'XML per
+     * cada objecte precarregat
+     */
+    public ArrencadaGestor(GestorDBAmbCache gestor, int iteracionsJit) {
+        this.gestor = gestor;
+        this.iteracionsJit = iteracionsJit;
+    }
+
+    /**
+     * Executa l'escalfament
+     * @param departamentsCalents Codis dels departaments que es precarreguen a
+     * la cache. El primer també es fa servir per executar les consultes
+     * habituals
+     * @throws IOException Si no es pot connectar amb la BD
+     */
+    public void escalfa(List<String> departamentsCalents) throws IOException {
+        long inici = System.nanoTime();
+        GestorDB gestorDB = gestor.getGestor();
+
+        //Obre la connexió si el gestor és mandrós
+        gestorDB.getClientSession();
+
+        //Executa les consultes habituals un cop, sense guardar res a la cache
+        if (!departamentsCalents.isEmpty()) {
+            String codiDept = departamentsCalents.get(0);
+            gestorDB.existeixDept(codiDept);
+            gestorDB.getDeptAmbEmp(codiDept);
+            try {
+                List<String> codis = gestorDB.getCodisEmpleats(codiDept);
+                if (!codis.isEmpty()) {
+                    gestorDB.existeixEmp(codis.get(0));
+                    gestorDB.getEmpleat(codis.get(0));
+                }
+            } catch (Exception ex) {
+                System.err.println(ex);
+            }
+        }
+
+        //Precarrega els departaments a la cache
+        List<Dept> precarregats = new ArrayList<>();
+        for (String codiDept : departamentsCalents) {
+            Dept departament = gestor.getDeptAmbEmp(codiDept);
+            if (departament != null) {
+                precarregats.add(departament);
+                empleatsPrecarregats += departament.getEmpleats().size();
+            }
+        }
+        departamentsPrecarregats = precarregats.size();
+
+        //Escalfa els generadors d'XML de les escriptures
+        for (int i = 0; i < iteracionsJit; i++) {
+            for (Dept departament : precarregats) {
+                gestorDB.generateDeptXml(departament);
+                for (Emp empleat : departament.getEmpleats()) {
+                    gestorDB.generateEmpXml(empleat);
+                }
+            }
+        }
+        tempsEscalfament = System.nanoTime() - inici;
+
+        //La propera consulta que es faci serà la primera servida
+        primeraConsultaEscalfament = gestorDB.reiniciaPrimeraConsulta();
+    }
+
+    /**
+     * @return Nanosegons que ha durat l'escalfament, o -1 si no s'ha fet
+     */
+    public long getTempsEscalfament() {
+        return tempsEscalfament;
+    }
+
+    /**
+     * @return Temps de connexió, d'escalfament, fins a la primera consulta de
+     * l'escalfament i fins a la primera consulta servida després, i objectes
+     * precarregats
+     */
+    public String getInforme() {
+        GestorDB gestorDB = gestor.getGestor();
+        return "Arrencada{" + "connexio = " + millis(gestorDB.getTempsConnexio())
+                + " ms, escalfament = " + millis(tempsEscalfament)
+                + " ms, finsPrimeraConsultaEscalfament = " + millis(primeraConsultaEscalfament)
+                + " ms, finsPrimeraConsultaServida = " + millis(gestorDB.getTempsFinsPrimeraConsulta())
+                + " ms, departamentsPrecarregats = " + departamentsPrecarregats
+                + ", empleatsPrecarregats = " + empleatsPrecarregats + '}';
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : String.format("%.1f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,307 @@
+package gestorbasex;
+
+import empresa.Dept;
+import empresa.Emp;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache de dos nivells d'empleats i departaments (sense els seus empleats).
+ * 
+ * El primer nivell és un LRU petit d'objectes al heap. Quan un objecte
+ * n'és expulsat, només passa al segon nivell si s'ha consultat com a mínim
+ * accessosPerAdmetre vegades; així els objectes que només s'han llegit un cop
+ * no omplen el segon nivell. El segon nivell guarda els registres serialitzats
+ * fora del heap i, quan és ple, descarta els més antics.
+ * 
+ * La mida del primer nivell s'adapta a l'ocupació de la generació vella del
+ * heap després de l'última recol·lecció: si supera el llindar es redueix a la
+ * meitat i, quan torna a baixar, creix fins a la mida configurada. Es fa servir
+ * l'ocupació posterior a la recol·lecció perquè l'ús instantani del heap
+ * inclou brossa pendent i supera el llindar abans de cada recol·lecció jove.
+ * 
+ * Els objectes es copien en guardar-los i en retornar-los, perquè els canvis
+ * dels cridadors no modifiquin la cache.
+ * 
+ * Diversos gestors poden compartir la cache, així que una lectura de la BD
+ * pot arribar després d'una escriptura més nova del mateix objecte. Per això
+ * un objecte mai no reemplaça una còpia d'una versió posterior, ni al primer
+ * nivell ni al segon.
+ */
+public class CacheEmpresa {
+
+    private static final int LIMIT_MINIM = 16;
+    //Cada quantes operacions es comprova l'ús del heap
+    private static final int OPERACIONS_PER_COMPROVAR_HEAP = 1024;
+
+    private static class Entrada {
+        private final Object valor;
+        private int accessos;
+        //true si el segon nivell en té una còpia vàlida
+        private final boolean aSegonNivell;
+
+        Entrada(Object valor, int accessos, boolean aSegonNivell) {
+            this.valor = valor;
+            this.accessos = accessos;
+            this.aSegonNivell = aSegonNivell;
+        }
+    }
+
+    //Generació vella del heap, o null si la JVM no en publica l'ocupació
+    private static final MemoryPoolMXBean GENERACIO_VELLA = cercaGeneracioVella();
+
+    private final int maxObjectes;
+    private final int accessosPerAdmetre;
+    private final double llindarHeap;
+    private final MagatzemOffHeap segonNivell;
+    private final LinkedHashMap<String, Entrada> primerNivell = new LinkedHashMap<>(16, 0.75f, true);
+    private int limitActual;
+    private long operacions;
+    private long encertsPrimerNivell;
+    private long encertsSegonNivell;
+    private long fallades;
+
+    /**
+     * @param maxObjectes Nombre màxim d'objectes al primer nivell
+     * @param accessosPerAdmetre Accessos mínims perquè un objecte expulsat del
+     * primer nivell passi al segon
+     * @param llindarHeap Fracció del heap màxim a partir de la qual es redueix
+     * el primer nivell
+     * @param segonNivell Magatzem del segon nivell. Si és null, només hi ha
+     * primer nivell
+     */
+    public CacheEmpresa(int maxObjectes, int accessosPerAdmetre, double llindarHeap,
+            MagatzemOffHeap segonNivell) {
+        this.maxObjectes = maxObjectes;
+        this.accessosPerAdmetre = accessosPerAdmetre;
+        this.llindarHeap = llindarHeap;
+        this.segonNivell = segonNivell;
+        this.limitActual = maxObjectes;
+    }
+
+    public synchronized Emp getEmp(String codi) {
+        Object valor = get("e:" + codi);
+        return valor == null ? null : copia((Emp) valor);
+    }
+
+    public synchronized Dept getDept(String codi) {
+        Object valor = get("d:" + codi);
+        return valor == null ? null : copia((Dept) valor);
+    }
+
+    public synchronized void put(Emp empleat) {
+        put("e:" + empleat.getCodi(), copia(empleat));
+    }
+
+    public synchronized void put(Dept departament) {
+        put("d:" + departament.getCodi(), copia(departament));
+    }
+
+    public synchronized void invalidaEmp(String codi) {
+        invalida("e:" + codi);
+    }
+
+    public synchronized void invalidaDept(String codi) {
+        invalida("d:" + codi);
+    }
+
+    /**
+     * Elimina tots els objectes dels dos nivells
+     */
+    public synchronized void buida() {
+        primerNivell.clear();
+        if (segonNivell != null) {
+            segonNivell.buida();
+        }
+    }
+
+    public synchronized int getLimitActual() {
+        return limitActual;
+    }
+
+    public synchronized String getEstadistiques() {
+        return "CacheEmpresa{" + "primerNivell = " + primerNivell.size() + "/" + limitActual
+                + ", segonNivell = " + (segonNivell == null ? 0 : segonNivell.getRegistres())
+                + ", encertsPrimerNivell = " + encertsPrimerNivell
+                + ", encertsSegonNivell = " + encertsSegonNivell + ", fallades = " + fallades + '}';
+    }
+
+    private Object get(String clau) {
+        Entrada entrada = primerNivell.get(clau);
+        if (entrada != null) {
+            entrada.accessos++;
+            encertsPrimerNivell++;
+            return entrada.valor;
+        }
+        if (segonNivell != null) {
+            byte[] dades = segonNivell.llegeix(clau);
+            if (dades != null) {
+                try {
+                    Object valor = SerialitzadorEmpresa.deserialitza(dades);
+                    encertsSegonNivell++;
+                    //La còpia del segon nivell es manté, així quan torni a
+                    //sortir del primer nivell no s'ha de tornar a escriure
+                    afegeixPrimerNivell(clau, new Entrada(valor, accessosPerAdmetre, true));
+                    return valor;
+                } catch (IOException ex) {
+                    System.err.println(ex);
+                    segonNivell.elimina(clau);
+                }
+            }
+        }
+        fallades++;
+        return null;
+    }
+
+    private void put(String clau, Object valor) {
+        if (versio(valor) < versioGuardada(clau)) {
+            return;
+        }
+        //La còpia del segon nivell ja no és vàlida
+        if (segonNivell != null) {
+            segonNivell.elimina(clau);
+        }
+        afegeixPrimerNivell(clau, new Entrada(valor, 1, false));
+    }
+
+    /**
+     * @return Versió de l'objecte guardat als dos nivells, o -1 si no hi és
+     */
+    private long versioGuardada(String clau) {
+        Entrada entrada = primerNivell.get(clau);
+        if (entrada != null) {
+            return versio(entrada.valor);
+        }
+        if (segonNivell != null) {
+            byte[] dades = segonNivell.llegeix(clau);
+            if (dades != null) {
+                try {
+                    return versio(SerialitzadorEmpresa.deserialitza(dades));
+                } catch (IOException ex) {
+                    System.err.println(ex);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void invalida(String clau) {
+        primerNivell.remove(clau);
+        if (segonNivell != null) {
+            segonNivell.elimina(clau);
+        }
+    }
+
+    private void afegeixPrimerNivell(String clau, Entrada entrada) {
+        primerNivell.put(clau, entrada);
+        if (++operacions % OPERACIONS_PER_COMPROVAR_HEAP == 0) {
+            ajustaLimit();
+        }
+        expulsaSobrants();
+    }
+
+    /**
+     * Redueix el límit del primer nivell si l'ocupació de la generació vella
+     * després de l'última recol·lecció supera el llindar i el torna a augmentar
+     * quan baixa prou
+     */
+    private void ajustaLimit() {
+        if (GENERACIO_VELLA == null) {
+            return;
+        }
+        MemoryUsage ocupacio = GENERACIO_VELLA.getCollectionUsage();
+        long maxim = GENERACIO_VELLA.getUsage().getMax();
+        if (maxim <= 0) {
+            maxim = Runtime.getRuntime().maxMemory();
+        }
+        //Encara no hi ha hagut cap recol·lecció
+        if (ocupacio == null || ocupacio.getUsed() == 0) {
+            return;
+        }
+        double us = (double) ocupacio.getUsed() / maxim;
+        if (us > llindarHeap) {
+            limitActual = Math.max(LIMIT_MINIM, limitActual / 2);
+        } else if (us < llindarHeap * 0.8) {
+            limitActual = Math.min(maxObjectes, limitActual * 2);
+        }
+    }
+
+    /**
+     * Expulsa els objectes menys usats recentment fins que el primer nivell
+     * no supera el límit, passant al segon nivell els que s'hi admeten
+     */
+    private void expulsaSobrants() {
+        Iterator<Map.Entry<String, Entrada>> entrades = primerNivell.entrySet().iterator();
+        while (primerNivell.size() > limitActual && entrades.hasNext()) {
+            Map.Entry<String, Entrada> expulsada = entrades.next();
+            entrades.remove();
+            Entrada entrada = expulsada.getValue();
+            if (segonNivell == null || entrada.accessos < accessosPerAdmetre) {
+                continue;
+            }
+            //Si la còpia del segon nivell encara hi és no cal reescriure-la;
+            //pot haver estat expulsada del buffer mentrestant
+            if (!entrada.aSegonNivell || !segonNivell.conte(expulsada.getKey())) {
+                guardaSegonNivell(expulsada.getKey(), entrada.valor);
+            }
+        }
+    }
+
+    private void guardaSegonNivell(String clau, Object valor) {
+        try {
+            byte[] dades = valor instanceof Emp ? SerialitzadorEmpresa.serialitza((Emp) valor)
+                    : SerialitzadorEmpresa.serialitza((Dept) valor);
+            segonNivell.guarda(clau, dades);
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+
+    /**
+     * Cerca el pool de memòria de la generació vella: el del heap que publica
+     * l'ocupació després de les recol·leccions i que té "Old" o "Tenured" al
+     * nom. Si no n'hi ha cap amb aquest nom, el més gran que la publiqui.
+     */
+    private static MemoryPoolMXBean cercaGeneracioVella() {
+        MemoryPoolMXBean triat = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            if (pool.getName().contains("Old") || pool.getName().contains("Tenured")) {
+                return pool;
+            }
+            if (triat == null || pool.getUsage().getMax() > triat.getUsage().getMax()) {
+                triat = pool;
+            }
+        }
+        return triat;
+    }
+
+    private static long versio(Object valor) {
+        Long versio = valor instanceof Emp ? ((Emp) valor).getVersio()
+                : ((Dept) valor).getVersio();
+        return versio == null ? 0 : versio;
+    }
+
+    private static Emp copia(Emp empleat) {
+        Emp copia = new Emp(empleat.getCodi(), empleat.getCodiDep(), empleat.getCodiCap(),
+                empleat.getCognom(), empleat.getOfici(), empleat.getDataAlta(),
+                empleat.getSalari(), empleat.getComissio());
+        copia.setVersio(empleat.getVersio());
+        return copia;
+    }
+
+    private static Dept copia(Dept departament) {
+        Dept copia = new Dept(departament.getCodi(), departament.getNom(),
+                departament.getLocalitat());
+        copia.setVersio(departament.getVersio());
+        return copia;
+    }
+}
@@ -0,0 +1,191 @@
+package gestorbasex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.basex.api.client.ClientQuery;
+
+/**
+ * Cerques per text sobre el cognom i l'ofici dels empleats i sobre el nom i la
+ * localitat dels departaments. Les cerques no distingeixen majúscules ni
+ * accents i fan servir l'índex full-text de BaseX, que s'ha de crear amb
+ * {@link #creaIndex()}.
+ * 
+ * BaseX no actualitza l'índex full-text quan es modifica la BD: després de
+ * qualsevol actualització l'índex queda invalidat i, fins que es reconstrueix,
+ * les cerques recorren tots els nodes. Els resultats són correctes però més
+ * lents. Les cerques no reconstrueixen mai l'índex, perquè la reconstrucció
+ * recorre tota la BD i bloqueja les altres sessions mentre dura. S'ha de fer
+ * fora de les peticions amb {@link #reconstrueixIndexSiCal(long)}, per exemple
+ * des d'una tasca periòdica, o bé activar AUTOOPTIMIZE a la BD. Les
+ * escriptures d'altres processos no es comptabilitzen.
+ */
+public class CercadorDB {
+
+    private static final String CAMPS_EMP = "/empresa/empleats/emp/(cognom | ofici)";
+    private static final String CAMPS_DEPT = "/empresa/departaments/dept/(nom | localitat)";
+
+    //Cada resultat es retorna com una línia amb els camps separats per tabuladors
+    private static final String CONSULTA_CERCA = "declare variable $terme external;\n"
+            + "declare variable $limit as xs:integer external;\n"
+            + "(for $camp score $puntuacio in %s[text() contains text {$terme} all words %s"
+            + "using case insensitive using diacritics insensitive]\n"
+            + "order by $puntuacio descending\n"
+            + "return string-join((string($camp/../@codi), name($camp), normalize-space($camp), "
+            + "string($puntuacio)), \"&#9;\"))[position() <= $limit]";
+
+    private final GestorDB gestor;
+    //Escriptures del gestor quan es va crear l'índex, -1 si no s'ha creat
+    private long escripturesIndex = -1;
+
+    /**
+     * Constructor que fa servir la connexió d'un gestor ja obert
+     * @param gestor Gestor connectat a la BD empresa
+     */
+    public CercadorDB(GestorDB gestor) {
+        this.gestor = gestor;
+    }
+
+    /**
+     * Crea (o reconstrueix) l'índex full-text de la BD oberta
+     */
+    public void creaIndex() {
+        reconstrueix();
+    }
+
+    /**
+     * Reconstrueix l'índex si el gestor ha fet com a mínim escripturesMinimes
+     * escriptures des de l'última vegada que es va crear. No s'ha de cridar
+     * des de les peticions, ja que la reconstrucció recorre tota la BD. Si
+     * l'índex no s'ha creat mai, no fa res.
+     * @param escripturesMinimes Escriptures pendents a partir de les quals es
+     * reconstrueix
+     * @return true si s'ha reconstruït l'índex
+     */
+    public boolean reconstrueixIndexSiCal(long escripturesMinimes) {
+        if (escripturesIndex < 0 || getEscripturesPendents() < escripturesMinimes) {
+            return false;
+        }
+        return reconstrueix();
+    }
+
+    /**
+     * @return Escriptures del gestor des de l'última vegada que es va crear
+     * l'índex, o -1 si no s'ha creat mai
+     */
+    public long getEscripturesPendents() {
+        return escripturesIndex < 0 ? -1 : gestor.getEscriptures() - escripturesIndex;
+    }
+
+    private boolean reconstrueix() {
+        try {
+            long escriptures = gestor.getEscriptures();
+            gestor.getClientSession().execute("CREATE INDEX fulltext");
+            escripturesIndex = escriptures;
+            return true;
+        } catch (IOException ex) {
+            System.err.println(ex);
+            return false;
+        }
+    }
+
+    /**
+     * Cerca empleats que contenen totes les paraules indicades al cognom o a
+     * l'ofici.
+     * @param text Paraules a cercar
+     * @param limit Nombre màxim de resultats
+     * @return Llista de resultats ordenats per puntuació
+     */
+    public List<ResultatCerca> cercaEmpleats(String text, int limit) {
+        return cerca(CAMPS_EMP, text, false, limit);
+    }
+
+    /**
+     * Cerca empleats amb alguna paraula del cognom o de l'ofici que comença
+     * per cadascuna de les paraules indicades.
+     * @param prefix Inici de les paraules a cercar
+     * @param limit Nombre màxim de resultats
+     * @return Llista de resultats ordenats per puntuació
+     */
+    public List<ResultatCerca> cercaEmpleatsPerPrefix(String prefix, int limit) {
+        return cerca(CAMPS_EMP, prefix, true, limit);
+    }
+
+    /**
+     * Cerca departaments que contenen totes les paraules indicades al nom o a
+     * la localitat.
+     * @param text Paraules a cercar
+     * @param limit Nombre màxim de resultats
+     * @return Llista de resultats ordenats per puntuació
+     */
+    public List<ResultatCerca> cercaDepartaments(String text, int limit) {
+        return cerca(CAMPS_DEPT, text, false, limit);
+    }
+
+    /**
+     * Cerca departaments amb alguna paraula del nom o de la localitat que
+     * comença per cadascuna de les paraules indicades.
+     * @param prefix Inici de les paraules a cercar
+     * @param limit Nombre màxim de resultats
+     * @return Llista de resultats ordenats per puntuació
+     */
+    public List<ResultatCerca> cercaDepartamentsPerPrefix(String prefix, int limit) {
+        return cerca(CAMPS_DEPT, prefix, true, limit);
+    }
+
+    /**
+     * Executa una cerca full-text sobre els camps indicats
+     * @param camps Camí XPath dels elements on es cerca
+     * @param text Paraules a cercar
+     * @param prefix Si és true, cada paraula es cerca com a prefix
+     * @param limit Nombre màxim de resultats
+     * @return Llista de resultats. Si hi ha un error, la llista és buida
+     */
+    private List<ResultatCerca> cerca(String camps, String text, boolean prefix, int limit) {
+        List<ResultatCerca> resultats = new ArrayList<>();
+        String terme = prefix ? generaPrefix(text) : text.trim();
+        if (terme.isEmpty() || limit <= 0) {
+            return resultats;
+        }
+        try {
+            ClientQuery query = gestor.getClientSession().query(String.format(CONSULTA_CERCA, camps,
+                    prefix ? "using wildcards " : ""));
+            try {
+                query.bind("terme", terme);
+                query.bind("limit", limit, "xs:integer");
+                while (query.more()) {
+                    String[] camp = query.next().split("\t");
+                    resultats.add(new ResultatCerca(camp[0], camp[1], camp[2],
+                            Double.parseDouble(camp[3])));
+                }
+                gestor.marcaConsulta();
+            } finally {
+                query.close();
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+        return resultats;
+    }
+
+    /**
+     * Converteix cada paraula del text en un patró de wildcards que accepta
+     * qualsevol paraula que comenci per ella.
+     * @param text Paraules a cercar
+     * @return Patró per fer servir amb l'opció "using wildcards"
+     */
+    private String generaPrefix(String text) {
+        StringBuilder patro = new StringBuilder();
+        for (String paraula : text.trim().split("\\s+")) {
+            if (paraula.isEmpty()) {
+                continue;
+            }
+            if (patro.length() > 0) {
+                patro.append(' ');
+            }
+            //Escapam els caràcters especials de les wildcards
+            patro.append(paraula.replaceAll("([.?*+{}\\\\])", "\\\\$1")).append(".*");
+        }
+        return patro.toString();
+    }
+}
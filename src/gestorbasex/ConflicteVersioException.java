@@ -0,0 +1,15 @@
+package gestorbasex;
+
+/**
+ * Excepció que es llança quan una actualització condicional troba que la
+ * versió guardada a la BD no coincideix amb la versió de l'objecte, és a dir,
+ * que un altre procés l'ha modificat des que es va recuperar.
+ */
+public class ConflicteVersioException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConflicteVersioException(String message) {
+        super(message);
+    }
+}
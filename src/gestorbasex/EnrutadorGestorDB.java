@@ -0,0 +1,456 @@
+package gestorbasex;
+
+import empresa.Dept;
+import empresa.Emp;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.basex.core.BaseXException;
+
+/**
+ * Reparteix les operacions de GestorDB entre diversos servidors BaseX: les
+ * escriptures van sempre al servidor primari i les lectures a les rèpliques,
+ * triades per torn rotatori o pel servidor amb menys peticions en curs.
+ * 
+ * Cada servidor té un conjunt fix de connexions (un GestorDB per connexió),
+ * de manera que l'enrutador es pot fer servir des de diversos fils alhora. Les
+ * connexions es poden obrir al constructor o, si són mandroses, en el primer
+ * ús; {@link #escalfa(String)} les obre totes abans de servir peticions.
+ * 
+ * Si la lectura pròpia està activada, durant la finestra indicada després
+ * d'una escriptura les lectures del mateix fil van al primari, perquè una
+ * rèplica encara no actualitzada no amagui els canvis que acaba de fer.
+ * 
+ * Quan una operació falla per un error de connexió (qualsevol IOException que
+ * no sigui un error retornat pel servidor), la connexió es tanca i es
+ * reemplaça per una de nova, i el servidor es deixa de fer servir per a
+ * lectures durant ESPERA_SERVIDOR_CAIGUT_MS. Les lectures fallides es tornen a
+ * provar a una altra rèplica i, si no n'hi ha cap de disponible, al primari.
+ * 
+ * BaseX no replica les BD per si mateix; la còpia de l'empresa a cada rèplica
+ * s'ha de mantenir per altres vies. Per provar-ho en local es poden arrencar
+ * diversos servidors amb basexserver -p port.
+ */
+public class EnrutadorGestorDB {
+
+    //Temps que un servidor amb errors de connexió deixa de rebre lectures
+    private static final long ESPERA_SERVIDOR_CAIGUT_MS = 5000;
+
+    public enum Balanceig {
+        ROTATORI, MENYS_CARREGAT
+    }
+
+    /**
+     * Operació que s'executa sobre una connexió d'un servidor
+     * @param <T> Tipus del resultat
+     */
+    public interface Operacio<T> {
+        T executa(GestorDB gestor) throws Exception;
+    }
+
+    private static class Servidor {
+        private final String nom;
+        private final String host;
+        private final int port;
+        private final String usuari;
+        private final String contrasenya;
+        private final BlockingQueue<GestorDB> connexions;
+        private final AtomicInteger enCurs = new AtomicInteger();
+        //Instant (System.currentTimeMillis) fins al qual no rep lectures
+        private volatile long noDisponibleFins;
+
+        private final boolean connexioMandrosa;
+
+        Servidor(String adreca, int numConnexions, String usuari, String contrasenya,
+                boolean connexioMandrosa) {
+            this.nom = adreca;
+            String[] parts = adreca.split(":");
+            this.host = parts[0];
+            this.port = Integer.parseInt(parts[1]);
+            this.usuari = usuari;
+            this.contrasenya = contrasenya;
+            this.connexioMandrosa = connexioMandrosa;
+            this.connexions = new ArrayBlockingQueue<>(numConnexions);
+            for (int i = 0; i < numConnexions; i++) {
+                connexions.add(novaConnexio(connexioMandrosa));
+            }
+        }
+
+        /**
+         * @param mandrosa Si és true, la connexió s'obre el primer cop que es
+         * fa servir
+         */
+        GestorDB novaConnexio(boolean mandrosa) {
+            return new GestorDB(host, port, usuari, contrasenya, mandrosa);
+        }
+
+        boolean disponible() {
+            return System.currentTimeMillis() >= noDisponibleFins;
+        }
+    }
+
+    private final Servidor primari;
+    private final List<Servidor> replicas = new ArrayList<>();
+    private final Balanceig balanceig;
+    private final long finestraLecturaPropia;
+    private final AtomicInteger torn = new AtomicInteger();
+    private final ThreadLocal<Long> darreraEscriptura = new ThreadLocal<>();
+    private volatile boolean tancat;
+    private long tempsEscalfament = -1;
+
+    /**
+     * @param primari Adreça host:port del servidor primari
+     * @param replicas Adreces host:port de les rèpliques de lectura. Si és
+     * buida, les lectures també van al primari
+     * @param connexionsPerServidor Connexions que s'obren a cada servidor
+     * @param usuari Usuari
+     * @param contrasenya Contrassenya
+     * @param balanceig Criteri per triar la rèplica
+     * @param finestraLecturaPropia Mil·lisegons després d'una escriptura en
+     * què les lectures del mateix fil van al primari. 0 la desactiva
+     */
+    public EnrutadorGestorDB(String primari, List<String> replicas, int connexionsPerServidor,
+            String usuari, String contrasenya, Balanceig balanceig, long finestraLecturaPropia) {
+        this(primari, replicas, connexionsPerServidor, usuari, contrasenya, balanceig,
+                finestraLecturaPropia, false);
+    }
+
+    /**
+     * @param primari Adreça host:port del servidor primari
+     * @param replicas Adreces host:port de les rèpliques de lectura. Si és
+     * buida, les lectures també van al primari
+     * @param connexionsPerServidor Connexions que s'obren a cada servidor
+     * @param usuari Usuari
+     * @param contrasenya Contrassenya
+     * @param balanceig Criteri per triar la rèplica
+     * @param finestraLecturaPropia Mil·lisegons després d'una escriptura en
+     * què les lectures del mateix fil van al primari. 0 la desactiva
+     * @param connexioMandrosa Si és true, cada connexió s'obre el primer cop
+     * que es fa servir
+     */
+    public EnrutadorGestorDB(String primari, List<String> replicas, int connexionsPerServidor,
+            String usuari, String contrasenya, Balanceig balanceig, long finestraLecturaPropia,
+            boolean connexioMandrosa) {
+        this.primari = new Servidor(primari, connexionsPerServidor, usuari, contrasenya,
+                connexioMandrosa);
+        for (String replica : replicas) {
+            this.replicas.add(new Servidor(replica, connexionsPerServidor, usuari, contrasenya,
+                    connexioMandrosa));
+        }
+        this.balanceig = balanceig;
+        this.finestraLecturaPropia = finestraLecturaPropia;
+    }
+
+    /**
+     * Tanca totes les connexions. Després de tancar, les operacions llancen
+     * una excepció en lloc d'obrir connexions noves. Les connexions que fan
+     * servir les operacions en curs les tanquen aquestes operacions en acabar
+     */
+    public void tancarSessio() {
+        tancat = true;
+        for (Servidor servidor : servidors()) {
+            for (GestorDB gestor : servidor.connexions) {
+                gestor.tancarSessio();
+            }
+        }
+    }
+
+    /**
+     * Obre totes les connexions de tots els servidors i hi executa una consulta
+     * senzilla, perquè les primeres peticions no hagin de connectar. S'ha de
+     * cridar abans de començar a servir peticions.
+     * @param codiDept Departament que es consulta a cada connexió
+     * @return Nombre de connexions que no s'han pogut obrir
+     * @throws InterruptedException Si el fil s'interromp mentre espera una
+     * connexió
+     */
+    public int escalfa(String codiDept) throws InterruptedException {
+        long inici = System.nanoTime();
+        int errors = 0;
+        for (Servidor servidor : servidors()) {
+            List<GestorDB> gestors = new ArrayList<>();
+            servidor.connexions.drainTo(gestors);
+            try {
+                for (GestorDB gestor : gestors) {
+                    try {
+                        gestor.comprovaExisteixDept(codiDept);
+                    } catch (IOException ex) {
+                        System.err.println(servidor.nom + ": " + ex);
+                        errors++;
+                    }
+                }
+            } finally {
+                for (GestorDB gestor : gestors) {
+                    servidor.connexions.put(gestor);
+                    if (tancat) {
+                        gestor.tancarSessio();
+                    }
+                }
+            }
+        }
+        tempsEscalfament = System.nanoTime() - inici;
+        return errors;
+    }
+
+    /**
+     * @return Nanosegons que ha durat l'escalfament, o -1 si no s'ha fet
+     */
+    public long getTempsEscalfament() {
+        return tempsEscalfament;
+    }
+
+    private List<Servidor> servidors() {
+        List<Servidor> servidors = new ArrayList<>(replicas);
+        servidors.add(primari);
+        return servidors;
+    }
+
+    /**
+     * @return Peticions en curs de cada servidor, començant pel primari
+     */
+    public String getCarrega() {
+        StringBuilder carrega = new StringBuilder(primari.nom + " = " + primari.enCurs.get());
+        for (Servidor replica : replicas) {
+            carrega.append(", ").append(replica.nom).append(" = ").append(replica.enCurs.get());
+        }
+        return carrega.toString();
+    }
+
+    public Emp getEmpleat(String codiEmp) throws Exception {
+        return llegeix(gestor -> gestor.getEmpleat(codiEmp));
+    }
+
+    public List<Emp> getEmpleats(List<String> codisEmp) throws Exception {
+        return llegeix(gestor -> gestor.getEmpleats(codisEmp));
+    }
+
+    public List<String> getCodisEmpleats(String codiDept) throws Exception {
+        return llegeix(gestor -> gestor.getCodisEmpleats(codiDept));
+    }
+
+    //Les operacions que a GestorDB escriuen els errors fan servir les variants
+    //que els llancen, perquè l'enrutador pugui detectar els errors de connexió
+
+    public Dept getDeptSenseEmp(String codiDept) {
+        return llegeixSenseExcepcio(gestor -> gestor.llegeixDeptSenseEmp(codiDept));
+    }
+
+    public Dept getDeptAmbEmp(String codiDept) {
+        return llegeixSenseExcepcio(gestor -> gestor.llegeixDeptAmbEmp(codiDept));
+    }
+
+    public boolean existeixDept(String codiDept) {
+        Boolean existeix = llegeixSenseExcepcio(gestor -> gestor.comprovaExisteixDept(codiDept));
+        return existeix != null && existeix;
+    }
+
+    public boolean existeixEmp(String codiEmp) {
+        Boolean existeix = llegeixSenseExcepcio(gestor -> gestor.comprovaExisteixEmp(codiEmp));
+        return existeix != null && existeix;
+    }
+
+    public void insertDept(Dept departament) {
+        escriuSenseExcepcio(gestor -> {
+            gestor.insereixDept(departament);
+            return null;
+        });
+    }
+
+    public void deleteDept(Dept departament) {
+        escriuSenseExcepcio(gestor -> {
+            gestor.eliminaDept(departament);
+            return null;
+        });
+    }
+
+    public void deleteDept(Dept departament, Dept departamentNou) {
+        escriuSenseExcepcio(gestor -> {
+            gestor.eliminaDept(departament, departamentNou);
+            return null;
+        });
+    }
+
+    public void replaceDept(Dept depAInserir, Dept depAReemplacar) {
+        insertDept(depAInserir);
+        deleteDept(depAReemplacar, depAInserir);
+    }
+
+    public void updateDept(Dept departament) throws Exception {
+        escriu(gestor -> {
+            gestor.updateDept(departament);
+            return null;
+        });
+    }
+
+    public void updateEmp(Emp empleat) throws Exception {
+        escriu(gestor -> {
+            gestor.updateEmp(empleat);
+            return null;
+        });
+    }
+
+    /**
+     * Executa una operació d'escriptura al servidor primari i activa la
+     * finestra de lectura pròpia del fil
+     * @param operacio Operació a executar
+     * @return Resultat de l'operació
+     * @throws Exception Si l'operació falla
+     */
+    public <T> T escriu(Operacio<T> operacio) throws Exception {
+        try {
+            return executa(primari, operacio);
+        } finally {
+            darreraEscriptura.set(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Executa una operació de lectura al servidor primari, sense afectar la
+     * finestra de lectura pròpia
+     * @param operacio Operació a executar
+     * @return Resultat de l'operació
+     * @throws Exception Si l'operació falla
+     */
+    public <T> T llegeixDelPrimari(Operacio<T> operacio) throws Exception {
+        return executa(primari, operacio);
+    }
+
+    /**
+     * Executa una operació de lectura en el servidor que correspon segons el
+     * balanceig i la lectura pròpia. Si falla per un error de connexió, es
+     * torna a provar en un altre servidor
+     * @param operacio Operació a executar
+     * @return Resultat de l'operació
+     * @throws Exception Si l'operació falla a tots els servidors possibles
+     */
+    public <T> T llegeix(Operacio<T> operacio) throws Exception {
+        List<Servidor> provats = new ArrayList<>();
+        Servidor servidor = triaLectura(provats);
+        while (true) {
+            try {
+                return executa(servidor, operacio);
+            } catch (Exception ex) {
+                if (!esErrorConnexio(ex)) {
+                    throw ex;
+                }
+                provats.add(servidor);
+                servidor = triaLectura(provats);
+                if (servidor == null) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private <T> T llegeixSenseExcepcio(Operacio<T> operacio) {
+        try {
+            return llegeix(operacio);
+        } catch (Exception ex) {
+            System.err.println(ex);
+            return null;
+        }
+    }
+
+    private void escriuSenseExcepcio(Operacio<Void> operacio) {
+        try {
+            escriu(operacio);
+        } catch (Exception ex) {
+            System.err.println(ex);
+        }
+    }
+
+    /**
+     * Tria el servidor on s'executa una lectura
+     * @param provats Servidors on la lectura ja ha fallat
+     * @return Servidor triat, o null si no en queda cap per provar
+     */
+    private Servidor triaLectura(List<Servidor> provats) {
+        Long escriptura = darreraEscriptura.get();
+        if (escriptura != null
+                && System.currentTimeMillis() - escriptura < finestraLecturaPropia) {
+            //Una rèplica podria no tenir encara l'escriptura, així que si el
+            //primari falla no es prova cap altre servidor
+            return provats.contains(primari) ? null : primari;
+        }
+
+        List<Servidor> candidates = new ArrayList<>();
+        for (Servidor replica : replicas) {
+            if (replica.disponible() && !provats.contains(replica)) {
+                candidates.add(replica);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return provats.contains(primari) ? null : primari;
+        }
+        if (balanceig == Balanceig.ROTATORI) {
+            return candidates.get(Math.floorMod(torn.getAndIncrement(), candidates.size()));
+        }
+        //Començam per una rèplica diferent cada cop perquè els empats no
+        //carreguin sempre la primera
+        int inici = Math.floorMod(torn.getAndIncrement(), candidates.size());
+        Servidor millor = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            Servidor replica = candidates.get((inici + i) % candidates.size());
+            if (millor == null || replica.enCurs.get() < millor.enCurs.get()) {
+                millor = replica;
+            }
+        }
+        return millor;
+    }
+
+    /**
+     * Els errors que retorna el servidor (consulta incorrecta, conflicte de
+     * versions...) són BaseXException i deixen la sessió en bon estat. La
+     * resta d'IOException indiquen que no hi ha connexió amb el servidor.
+     */
+    private static boolean esErrorConnexio(Exception ex) {
+        return ex instanceof IOException && !(ex instanceof BaseXException);
+    }
+
+    /**
+     * Una SenseConnexioException vol dir que el gestor no s'ha pogut connectar
+     * i espera per tornar-ho a provar; si es substituís, la connexió nova
+     * tornaria a provar-ho de seguida. Només se substitueixen els gestors
+     * amb una sessió que s'ha trencat.
+     */
+    private static boolean esSessioTrencada(Exception ex) {
+        return esErrorConnexio(ex) && !(ex instanceof SenseConnexioException);
+    }
+
+    private <T> T executa(Servidor servidor, Operacio<T> operacio) throws Exception {
+        if (tancat) {
+            throw new IOException("L'enrutador està tancat");
+        }
+        servidor.enCurs.incrementAndGet();
+        try {
+            GestorDB gestor = servidor.connexions.take();
+            try {
+                return operacio.executa(gestor);
+            } catch (Exception ex) {
+                if (esErrorConnexio(ex) && !tancat) {
+                    //Aparta el servidor i substitueix la connexió si s'ha trencat
+                    servidor.noDisponibleFins = System.currentTimeMillis()
+                            + ESPERA_SERVIDOR_CAIGUT_MS;
+                    if (esSessioTrencada(ex)) {
+                        gestor.tancarSessio();
+                        //Mandrosa: no bloqueja aquest fil contra un servidor caigut
+                        gestor = servidor.novaConnexio(true);
+                    }
+                }
+                throw ex;
+            } finally {
+                servidor.connexions.put(gestor);
+                //Si s'ha tancat mentre l'operació estava en curs, tancarSessio
+                //no ha vist aquesta connexió a la cua
+                if (tancat) {
+                    gestor.tancarSessio();
+                }
+            }
+        } finally {
+            servidor.enCurs.decrementAndGet();
+        }
+    }
+}
@@ -4,9 +4,14 @@ import empresa.Dept;
 import empresa.Emp;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -30,11 +35,35 @@ import org.w3c.dom.Element;
  */
 public class GestorDB {
 
+    //Codis d'error que llancen les consultes d'actualització condicional
+    private static final String ERR_CONFLICTE = "conflicteVersio";
+    private static final String ERR_NO_EXISTEIX = "noExisteix";
+    private static final String ERR_JA_EXISTEIX = "jaExisteix";
+
+    //Camps que es llegeixen de cada empleat: el codi, els del constructor
+    //d'Emp en el mateix ordre i la versió
+    private static final String[] CAMPS_EMP = {"@codi", "@dept", "@cap", "cognom", "ofici",
+        "dataAlta", "salari", "comissio", "@versio"};
+
+    private static final long ESPERA_RECONNEXIO_MINIMA_MS = 500;
+    private static final long ESPERA_RECONNEXIO_MAXIMA_MS = 30000;
+
     private final String username;
     private final String password;
     private final int port;
     private final String host;
+    private final long instantCreacio = System.nanoTime();
     private ClientSession clientSession;
+    private long tempsConnexio = -1;
+    private long tempsFinsPrimeraConsulta = -1;
+    //Després de tancarSessio el gestor ja no es pot tornar a connectar
+    private boolean tancat;
+    //Els intents de connexió fallits esperen cada cop el doble, fins al màxim
+    private long esperaReconnexio = ESPERA_RECONNEXIO_MINIMA_MS;
+    private long properIntentConnexio;
+    //Actualitzacions fetes per aquest gestor, per saber quan s'han invalidat
+    //els índexs que BaseX no manté automàticament
+    private long escriptures;
     
     /**
      * Constructor que crea la connexió amb la base de dades
@@ -44,29 +73,193 @@ public class GestorDB {
      * @param password Contrassenya
      */
     public GestorDB(String host, int port, String username, String password) {
+        this(host, port, username, password, false);
+    }
+
+    /**
+     * Constructor que permet endarrerir la connexió amb la base de dades fins
+     * a la primera consulta
+     * @param host Adreça on es troba la BD
+     * @param port Port de la BD
+     * @param username Usuari
+     * @param password Contrassenya
+     * @param connexioMandrosa Si és true, la connexió s'obre quan es fa la
+     * primera consulta en lloc de fer-ho al constructor
+     */
+    public GestorDB(String host, int port, String username, String password,
+            boolean connexioMandrosa) {
         this.host = host;
         this.port = port;
         this.username = username;
         this.password = password;
 
+        if (!connexioMandrosa) {
+            try {
+                connecta();
+            } catch (IOException ex) {
+                System.err.println(ex);
+            }
+        }
+    }
+
+    /**
+     * Obre la connexió amb la BD i la BD empresa
+     * @throws IOException Si no es pot connectar o obrir la BD
+     */
+    private synchronized void connecta() throws IOException {
+        long inici = System.nanoTime();
         try {
-            clientSession = new ClientSession(host, port, username, password);
-            clientSession.execute("OPEN empresa");
+            ClientSession sessio = new ClientSession(host, port, username, password);
+            try {
+                sessio.execute("OPEN empresa");
+            } catch (IOException ex) {
+                sessio.close();
+                throw ex;
+            }
+            clientSession = sessio;
         } catch (IOException ex) {
-            System.err.println(ex);
+            properIntentConnexio = System.currentTimeMillis() + esperaReconnexio;
+            esperaReconnexio = Math.min(esperaReconnexio * 2, ESPERA_RECONNEXIO_MAXIMA_MS);
+            throw ex;
+        }
+        esperaReconnexio = ESPERA_RECONNEXIO_MINIMA_MS;
+        tempsConnexio = System.nanoTime() - inici;
+    }
+
+    /**
+     * Retorna la sessió amb la BD, obrint-la si encara no s'ha obert o si no
+     * s'ha pogut obrir abans. Després d'un intent fallit, no es torna a provar
+     * fins que ha passat el temps d'espera.
+     * @return Sessió oberta amb la BD empresa
+     * @throws SenseConnexioException Si no es pot connectar o encara no ha
+     * passat el temps d'espera
+     * @throws IOException Si el gestor està tancat
+     */
+    private synchronized ClientSession sessio() throws IOException {
+        if (tancat) {
+            throw new IOException("La sessió del gestor està tancada");
+        }
+        if (clientSession == null) {
+            long espera = properIntentConnexio - System.currentTimeMillis();
+            if (espera > 0) {
+                throw new SenseConnexioException("No hi ha connexió amb " + host + ":" + port
+                        + ". Es tornarà a provar d'aquí a " + espera + " ms");
+            }
+            try {
+                connecta();
+            } catch (IOException ex) {
+                throw new SenseConnexioException("No s'ha pogut connectar amb " + host + ":"
+                        + port, ex);
+            }
+        }
+        return clientSession;
+    }
+
+    /**
+     * Retorna la sessió amb la BD perquè altres classes del paquet la puguin
+     * reutilitzar
+     * @return Sessió oberta amb la BD empresa
+     * @throws IOException Si no es pot connectar amb la BD
+     */
+    ClientSession getClientSession() throws IOException {
+        return sessio();
+    }
+
+    /**
+     * Executa una consulta i tanca el ClientQuery
+     * @param xquery Consulta a executar
+     * @return Resultat de la consulta
+     * @throws IOException Si hi ha un error amb la BD
+     */
+    private String executaConsulta(String xquery) throws IOException {
+        ClientQuery query = sessio().query(xquery);
+        try {
+            String resultat = query.execute();
+            marcaConsulta();
+            return resultat;
+        } finally {
+            query.close();
         }
     }
 
     /**
-     * Tancla la connexió amb la BD
+     * Registra que s'ha executat una consulta, per mesurar el temps fins a la
+     * primera. Les classes del paquet que executen consultes amb la sessió del
+     * gestor l'han de cridar quan la consulta ha acabat.
      */
-    public void tancarSessio() {
+    synchronized void marcaConsulta() {
+        if (tempsFinsPrimeraConsulta < 0) {
+            tempsFinsPrimeraConsulta = System.nanoTime() - instantCreacio;
+        }
+    }
+
+    /**
+     * Torna a començar la mesura del temps fins a la primera consulta, perquè
+     * la propera consulta es compti com la primera. Es fa servir per separar
+     * les consultes de l'escalfament de les consultes servides.
+     * @return Temps fins a la primera consulta abans de reiniciar-lo, o -1
+     */
+    synchronized long reiniciaPrimeraConsulta() {
+        long temps = tempsFinsPrimeraConsulta;
+        tempsFinsPrimeraConsulta = -1;
+        return temps;
+    }
+
+    /**
+     * @return true si la connexió amb la BD està oberta
+     */
+    public synchronized boolean estaConnectat() {
+        return clientSession != null;
+    }
+
+    /**
+     * @return Nanosegons que ha tardat a obrir la connexió, o -1 si encara no
+     * s'ha obert
+     */
+    public synchronized long getTempsConnexio() {
+        return tempsConnexio;
+    }
+
+    /**
+     * @return Nanosegons des de la creació del gestor fins que ha acabat la
+     * primera consulta, o -1 si encara no se n'ha executat cap
+     */
+    public synchronized long getTempsFinsPrimeraConsulta() {
+        return tempsFinsPrimeraConsulta;
+    }
+
+    /**
+     * @return Nombre d'actualitzacions que ha fet aquest gestor a la BD
+     */
+    long getEscriptures() {
+        return escriptures;
+    }
+
+    /**
+     * Tancla la connexió amb la BD. Després de tancar-la, el gestor ja no es pot
+     * fer servir.
+     */
+    public synchronized void tancarSessio() {
+        tancat = true;
+        if (clientSession == null) {
+            return;
+        }
         try {
             clientSession.execute("CLOSE");
             clientSession.close();
         } catch (IOException ex) {
             System.err.println(ex);
         }
+        clientSession = null;
+    }
+
+    /**
+     * Crea un lot buit per enviar diverses consultes de lectura a la BD en una
+     * sola petició
+     * @return Lot de consultes sobre la sessió del gestor
+     */
+    public LotConsultes nouLot() {
+        return new LotConsultes(this);
     }
 
     /**
@@ -75,34 +268,9 @@ public class GestorDB {
      * @return Objecte Departament.
      */
     public Dept getDeptSenseEmp(String codiDept) {
-        ClientQuery query;
         Dept departament = null;
         try {
-            //Recuperam el nom del departament
-            query = clientSession.query("data(/empresa/departaments/dept[@codi = \""
-                    + codiDept + "\"]/nom)");
-            String nom = query.execute();
-            query.close();
-
-            //Si la consulta no retorna res, com que el nom és un camp obligatori,
-            //el departament no existeix
-            if (nom.equals("")) {
-                throw new Exception("No existeix cap departament amb aquest codi");
-            }
-
-            //Recuperam la localitat del departament
-            query = clientSession.query("data(/empresa/departaments/dept[@codi = \""
-                    + codiDept + "\"]/localitat)");
-            String localitat = query.execute();
-            query.close();
-            
-            if (localitat.equals("")){
-                localitat = null;
-            }
-
-            //Cream el departament
-            departament = new Dept(codiDept, nom, localitat);
-
+            departament = llegeixDeptSenseEmp(codiDept);
         } catch (Exception ex) {
             System.err.println(ex);
         }
@@ -110,31 +278,30 @@ public class GestorDB {
     }
 
     /**
-     * Recupera un departament de la BD amb tots els seus empleats.
+     * Igual que getDeptSenseEmp, però llança els errors en lloc d'escriure'ls
+     * @param codiDept Codi del departament que volem recuperar
+     * @return Objecte Departament
+     * @throws Exception Si el departament no existeix o hi ha un error amb la BD
+     */
+    Dept llegeixDeptSenseEmp(String codiDept) throws Exception {
+        LotConsultes lot = nouLot();
+        List<Future<String>> camps = encuaDept(lot, codiDept);
+        lot.executa();
+        return construeixDept(codiDept, camps);
+    }
+
+    /**
+     * Recupera un departament de la BD amb tots els seus empleats. Només fa
+     * dues peticions a la BD: una pel departament i els codis dels empleats, i
+     * una altra per les dades de tots els empleats.
      * @param codiDept Codi del departament que volem recuperar
      * @return Objecte Departament amb tots els seus empleats. Si no té
      * empleats, empleats estarà null
      */
     public Dept getDeptAmbEmp(String codiDept) {
         Dept departament = null;
-        ClientQuery query;
         try {
-            departament = getDeptSenseEmp(codiDept);
-
-            if (departament == null) {
-                throw new Exception("S'ha produït un error al recuperar el departament"
-                        + "de la base de dades.");
-            }
-
-            List<String> codiEmpleats = getCodisEmpleatsPerDep(codiDept);
-
-            //Comprova si el departament te empleats
-            if (codiEmpleats != null) {
-                //Afegeix els empleats al departament
-                for (String codi : codiEmpleats) {
-                    departament.addEmpleat(getEmpleat(codi));
-                }
-            }
+            departament = llegeixDeptAmbEmp(codiDept);
         } catch (Exception ex) {
             System.err.println(ex);
         }
@@ -142,15 +309,208 @@ public class GestorDB {
     }
 
     /**
-     * Retorna un objecte Emp de la BD a partir del codi de l'empleat
+     * Igual que getDeptAmbEmp, però llança els errors en lloc d'escriure'ls
+     * @param codiDept Codi del departament que volem recuperar
+     * @return Objecte Departament amb tots els seus empleats
+     * @throws Exception Si el departament o algun empleat no existeix o hi ha
+     * un error amb la BD
+     */
+    Dept llegeixDeptAmbEmp(String codiDept) throws Exception {
+        LotConsultes lot = nouLot();
+        List<Future<String>> campsDept = encuaDept(lot, codiDept);
+        //Els empleats es recuperen tots junts amb un sol recorregut
+        Future<String> files = encuaEmpleats(lot, "@dept = \"" + codiDept + "\"");
+        lot.executa();
+
+        Dept departament = construeixDept(codiDept, campsDept);
+        for (Emp empleat : construeixEmpleats(valor(files))) {
+            departament.addEmpleat(empleat);
+        }
+        return departament;
+    }
+
+    /**
+     * Retorna un objecte Emp de la BD a partir del codi de l'empleat. Tots els
+     * camps es recuperen amb una sola petició a la BD.
      * @param codiEmp Codi de l'empleat que volem recuperar.
      * @return Empleat de la BD que té el codi passat per paràmetre
      * @throws Exception
      */
     public Emp getEmpleat(String codiEmp) throws Exception {
-        return new Emp(codiEmp, getCodiDep(codiEmp), getCodiCap(codiEmp), getCognom(codiEmp),
-                getOfici(codiEmp), getDataAlta(codiEmp), getSalari(codiEmp),
-                getComissio(codiEmp));
+        LotConsultes lot = nouLot();
+        Future<String> files = encuaEmpleats(lot, "@codi = \"" + codiEmp + "\"");
+        lot.executa();
+        List<Emp> empleats = construeixEmpleats(valor(files));
+        if (empleats.isEmpty()) {
+            throw new Exception("Aquest empleat no existeix a la base de dades");
+        }
+        return empleats.get(0);
+    }
+
+    /**
+     * Recupera diversos empleats de la BD amb una sola petició, que els cerca
+     * tots en un únic recorregut
+     * @param codisEmp Codis dels empleats que volem recuperar
+     * @return Empleats en el mateix ordre que els codis
+     * @throws Exception Si algun empleat no existeix o hi ha un error amb la BD
+     */
+    public List<Emp> getEmpleats(List<String> codisEmp) throws Exception {
+        List<Emp> empleats = new ArrayList<>();
+        if (codisEmp.isEmpty()) {
+            return empleats;
+        }
+        StringBuilder codis = new StringBuilder();
+        for (String codi : codisEmp) {
+            if (codis.length() > 0) {
+                codis.append(", ");
+            }
+            codis.append('"').append(codi).append('"');
+        }
+        LotConsultes lot = nouLot();
+        Future<String> files = encuaEmpleats(lot, "@codi = (" + codis + ")");
+        lot.executa();
+
+        //La BD els retorna en l'ordre del document
+        Map<String, Emp> perCodi = new HashMap<>();
+        for (Emp empleat : construeixEmpleats(valor(files))) {
+            perCodi.put(empleat.getCodi(), empleat);
+        }
+        for (String codi : codisEmp) {
+            Emp empleat = perCodi.get(codi);
+            if (empleat == null) {
+                throw new Exception("Aquest empleat no existeix a la base de dades");
+            }
+            empleats.add(empleat);
+        }
+        return empleats;
+    }
+
+    /**
+     * Torna una llista amb el codi de cada empleat del departament especificat
+     * @param codiDept Departament del qual volem recuperar el empleats
+     * @return Llista amb els codis dels empleats. Si no en té, és buida
+     * @throws IOException
+     */
+    public List<String> getCodisEmpleats(String codiDept) throws IOException {
+        String codis = executaConsulta("for $empleat in /empresa/empleats/emp[@dept=\""
+                + codiDept + "\"]\n" + "return (data($empleat/@codi))");
+
+        List<String> codisEmpleats = new ArrayList<>();
+        if (!codis.equals("")) {
+            codisEmpleats.addAll(Arrays.asList(codis.split("\\r?\\n")));
+        }
+        return codisEmpleats;
+    }
+
+    /**
+     * Afegeix a un lot les consultes dels camps d'un departament
+     * @param lot Lot on s'afegeixen les consultes
+     * @param codiDept Codi del departament
+     * @return Resultats del nom, la localitat i la versió, en aquest ordre
+     */
+    private List<Future<String>> encuaDept(LotConsultes lot, String codiDept) {
+        String cami = "/empresa/departaments/dept[@codi = \"" + codiDept + "\"]/";
+        List<Future<String>> camps = new ArrayList<>();
+        for (String camp : new String[]{"nom", "localitat", "@versio"}) {
+            camps.add(lot.afegeix("data(" + cami + camp + ")"));
+        }
+        return camps;
+    }
+
+    /**
+     * Crea un departament a partir dels resultats de les consultes d'encuaDept
+     * @param codiDept Codi del departament
+     * @param camps Resultats retornats per encuaDept, ja executats
+     * @return Departament sense empleats
+     * @throws Exception Si el departament no existeix
+     */
+    private Dept construeixDept(String codiDept, List<Future<String>> camps) throws Exception {
+        String nom = valor(camps.get(0));
+
+        //Si la consulta no retorna res, com que el nom és un camp obligatori,
+        //el departament no existeix
+        if (nom.equals("")) {
+            throw new Exception("No existeix cap departament amb aquest codi");
+        }
+
+        Dept departament = new Dept(codiDept, nom, buitANull(valor(camps.get(1))));
+        departament.setVersio(parseVersio(valor(camps.get(2))));
+        return departament;
+    }
+
+    /**
+     * Afegeix a un lot una consulta que retorna els empleats que compleixen una
+     * condició, un per línia. Cada empleat s'enllaça un sol cop i tots els seus
+     * camps es retornen junts, separats per tabuladors. Els camps es codifiquen
+     * amb encode-for-uri perquè no puguin contenir tabuladors ni salts de línia.
+     * @param lot Lot on s'afegeix la consulta
+     * @param condicio Predicat XPath sobre l'element emp
+     * @return Resultat amb una línia per empleat, en l'ordre del document
+     */
+    private Future<String> encuaEmpleats(LotConsultes lot, String condicio) {
+        StringBuilder fila = new StringBuilder("string-join((");
+        for (int i = 0; i < CAMPS_EMP.length; i++) {
+            if (i > 0) {
+                fila.append(", ");
+            }
+            fila.append("encode-for-uri(string($emp/").append(CAMPS_EMP[i]).append("))");
+        }
+        fila.append("), \"&#9;\")");
+        return lot.afegeix("for $emp in /empresa/empleats/emp[" + condicio + "]\nreturn "
+                + fila);
+    }
+
+    /**
+     * Crea els empleats a partir del resultat d'encuaEmpleats
+     * @param files Resultat d'encuaEmpleats, ja executat
+     * @return Empleats amb totes les seves dades, en el mateix ordre
+     * @throws Exception Si algun empleat no té departament o cognom
+     */
+    private List<Emp> construeixEmpleats(String files) throws Exception {
+        List<Emp> empleats = new ArrayList<>();
+        if (files.equals("")) {
+            return empleats;
+        }
+        for (String fila : files.split("\n")) {
+            String[] camps = fila.split("\t", -1);
+            for (int i = 0; i < camps.length; i++) {
+                camps[i] = URLDecoder.decode(camps[i], "UTF-8");
+            }
+            //El codi del departament i el cognom són obligatoris
+            if (camps.length != CAMPS_EMP.length || camps[1].equals("")
+                    || camps[3].equals("")) {
+                throw new Exception("Aquest empleat no existeix a la base de dades");
+            }
+            Emp empleat = new Emp(camps[0], camps[1], buitANull(camps[2]), camps[3],
+                    buitANull(camps[4]), buitANull(camps[5]),
+                    camps[6].equals("") ? null : Long.valueOf(camps[6]),
+                    camps[7].equals("") ? null : Long.valueOf(camps[7]));
+            empleat.setVersio(parseVersio(camps[8]));
+            empleats.add(empleat);
+        }
+        return empleats;
+    }
+
+    /**
+     * Retorna el resultat d'una consulta d'un lot ja executat
+     * @param resultat Future retornat per LotConsultes.afegeix
+     * @return Resultat de la consulta
+     * @throws Exception Si la consulta ha fallat
+     */
+    private String valor(Future<String> resultat) throws Exception {
+        try {
+            return resultat.get();
+        } catch (ExecutionException ex) {
+            throw (Exception) ex.getCause();
+        }
+    }
+
+    /**
+     * @param valor Resultat d'una consulta
+     * @return El mateix valor, o null si és buit
+     */
+    private String buitANull(String valor) {
+        return valor.equals("") ? null : valor;
     }
 
     /**
@@ -162,10 +522,8 @@ public class GestorDB {
      * @throws IOException
      */
     public String getCodiDep(String codiEmp) throws Exception {
-        ClientQuery query = clientSession.query("data(/empresa/empleats/emp[@codi = \""
+        String codiDep = executaConsulta("data(/empresa/empleats/emp[@codi = \""
                 + codiEmp + "\"]/@dept)");
-        String codiDep = query.execute();
-        query.close();
         if (codiDep.equals("")) {
             
             throw new Exception("Aquest empleat no existeix a la base de dades");
@@ -180,10 +538,8 @@ public class GestorDB {
      * @throws Exception
      */
     public String getCodiCap(String codiEmp) throws Exception {
-        ClientQuery query = clientSession.query("data(/empresa/empleats/emp[@codi = \""
+        String codiCap = executaConsulta("data(/empresa/empleats/emp[@codi = \""
                 + codiEmp + "\"]/@cap)");
-        String codiCap = query.execute();
-        query.close();
         if(codiCap.equals("")){
             codiCap = null;
         }
@@ -198,9 +554,7 @@ public class GestorDB {
      * @throws IOException
      */
     public String getCognom(String codiEmp) throws Exception {
-        ClientQuery query = clientSession.query("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/cognom)");
-        String cognom = query.execute();
-        query.close();
+        String cognom = executaConsulta("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/cognom)");
         if (cognom.equals("")) {
             throw new Exception("Aquest empleat no existeix a la base de dades");
         }
@@ -214,9 +568,7 @@ public class GestorDB {
      * @throws IOException
      */
     public String getOfici(String codiEmp) throws IOException {
-        ClientQuery query = clientSession.query("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/ofici)");
-        String ofici = query.execute();
-        query.close();
+        String ofici = executaConsulta("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/ofici)");
         if(ofici.equals("")){
             ofici = null;
         }
@@ -231,9 +583,7 @@ public class GestorDB {
      * @throws IOException
      */
     public String getDataAlta(String codiEmp) throws IOException {
-        ClientQuery query = clientSession.query("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/dataAlta)");
-        String dataAlta = query.execute();
-        query.close();
+        String dataAlta = executaConsulta("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/dataAlta)");
         if(dataAlta.equals("")){
             dataAlta = null;
         }
@@ -248,9 +598,7 @@ public class GestorDB {
      */
     public Long getSalari(String codiEmp) throws IOException {
         Long salari = null;
-        ClientQuery query = clientSession.query("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/salari)");
-        String result = query.execute();
-        query.close();
+        String result = executaConsulta("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/salari)");
         if (!result.equals("")) {
             salari = Long.valueOf(result);
         }
@@ -265,9 +613,7 @@ public class GestorDB {
      */
     public Long getComissio(String codiEmp) throws IOException {
         Long comissio = null;
-        ClientQuery query = clientSession.query("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/comissio)");
-        String result = query.execute();
-        query.close();
+        String result = executaConsulta("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/comissio)");
         if (!result.equals("")) {
             comissio = Long.valueOf(result);
         }
@@ -275,26 +621,27 @@ public class GestorDB {
     }
 
     /**
-     * Torna una llista amb el codi de cada empleat del departament especificat
-     * @param codiDept Departament del qual volem recuperar el empleats
-     * @return LLista amb els codis dels empleats
+     * Recupera la versió d'un empleat de la BD
+     * @param codiEmp Codi de l'empleat del qual volem obtenir la versió.
+     * @return Long amb la versió. Si l'empleat no té versió, retorna 0.
+     * @throws IOException
      */
-    private List<String> getCodisEmpleatsPerDep(String codiDept) {
-        List<String> codisEmpleats = null;
-        try {
-            //Retorna tots els codis dels empleats separats per un salt de linia
-            ClientQuery query = clientSession.query("for $empleat in /empresa/empleats/emp[@dept=\""
-                    + codiDept + "\"]\n" + "return (data($empleat/@codi))");
-            String codis = query.execute();
-
-            //Comprova que el departament té empleats
-            if (!codis.equals("")) {
-                codisEmpleats = new ArrayList<>(Arrays.asList(codis.split("\\r?\\n")));
-            }
-        } catch (IOException ex) {
-            System.err.println(ex);
+    public Long getVersioEmp(String codiEmp) throws IOException {
+        String result = executaConsulta("data(/empresa/empleats/emp[@codi=\"" + codiEmp + "\"]/@versio)");
+        return parseVersio(result);
+    }
+
+    /**
+     * Converteix el valor de l'atribut versio en un Long. Els nodes que no
+     * tenen l'atribut es consideren a la versió 0.
+     * @param versio Valor de l'atribut versio
+     * @return Long amb la versió
+     */
+    private Long parseVersio(String versio) {
+        if (versio.equals("")) {
+            return 0L;
         }
-        return codisEmpleats;
+        return Long.valueOf(versio);
     }
 
     /**
@@ -303,6 +650,17 @@ public class GestorDB {
      * @return String que representa l'empleat en XML
      */
     public String generateEmpXml(Emp empleat) {
+        return generateEmpXml(empleat, empleat.getVersio());
+    }
+
+    /**
+     * Converteix un objecte empleat en XML amb la versió indicada.
+     * @param empleat Empleat que volem convertir en XML
+     * @param versio Versió que es guarda a l'atribut versio. Si és null, no
+     * s'afegeix l'atribut
+     * @return String que representa l'empleat en XML
+     */
+    private String generateEmpXml(Emp empleat, Long versio) {
         String xml = null;
         try {
             //Construim el Document DOM
@@ -331,6 +689,12 @@ public class GestorDB {
                 empElement.setAttributeNode(capAttr);
             }
 
+            if (versio != null) {
+                Attr versioAttr = doc.createAttribute("versio");
+                versioAttr.setValue(versio.toString());
+                empElement.setAttributeNode(versioAttr);
+            }
+
             //Cream l'element obligatori del cognom
             Element cognomElement = doc.createElement("cognom");
             cognomElement.appendChild(doc.createTextNode(empleat.getCognom()));
@@ -375,6 +739,17 @@ public class GestorDB {
      * @return String que representa el departament en XML
      */
     public String generateDeptXml(Dept departament) {
+        return generateDeptXml(departament, departament.getVersio());
+    }
+
+    /**
+     * Converteix un objecte departament en XML amb la versió indicada.
+     * @param departament Departament que volem convertir en XML
+     * @param versio Versió que es guarda a l'atribut versio. Si és null, no
+     * s'afegeix l'atribut
+     * @return String que representa el departament en XML
+     */
+    private String generateDeptXml(Dept departament, Long versio) {
         String xml = null;
         try {
             //Construim el Document DOM
@@ -390,6 +765,12 @@ public class GestorDB {
             Attr codiAttr = doc.createAttribute("codi");
             codiAttr.setValue(departament.getCodi());
             deptElement.setAttributeNode(codiAttr);
+
+            if (versio != null) {
+                Attr versioAttr = doc.createAttribute("versio");
+                versioAttr.setValue(versio.toString());
+                deptElement.setAttributeNode(versioAttr);
+            }
             
             //Afegim l'element nom a l'element dep
             Element nomElement = doc.createElement("nom");
@@ -430,141 +811,259 @@ public class GestorDB {
     }
     
     public boolean existeixDept(String codiDept){
-        ClientQuery query;
         try {
-            query = clientSession.query("data(/empresa/departaments/dept[@codi = \""
-                    + codiDept + "\"])");
-            String dept = query.execute();
-            query.close();
-            if(!dept.equals("")){
-                return true;
-            }
+            return comprovaExisteixDept(codiDept);
         } catch (IOException ex) {
             System.err.println(ex);
         }
         return false;
     }
+
+    /**
+     * Igual que existeixDept, però llança els errors en lloc d'escriure'ls
+     * @param codiDept Codi del departament
+     * @return true si el departament existeix a la BD
+     * @throws IOException Si hi ha un error amb la BD
+     */
+    boolean comprovaExisteixDept(String codiDept) throws IOException {
+        String dept = executaConsulta("data(/empresa/departaments/dept[@codi = \""
+                + codiDept + "\"])");
+        return !dept.equals("");
+    }
     
     public boolean existeixEmp(String codiEmp){
-        ClientQuery query;
         try {
-            query = clientSession.query("data(/empresa/empleats/emp[@codi = \""
-                    + codiEmp + "\"])");
-            String emp = query.execute();
-            query.close();
-            if(!emp.equals("")){
-                return true;
-            }
+            return comprovaExisteixEmp(codiEmp);
         } catch (IOException ex) {
             System.err.println(ex);
         }
         return false;
     }
 
+    /**
+     * Igual que existeixEmp, però llança els errors en lloc d'escriure'ls
+     * @param codiEmp Codi de l'empleat
+     * @return true si l'empleat existeix a la BD
+     * @throws IOException Si hi ha un error amb la BD
+     */
+    boolean comprovaExisteixEmp(String codiEmp) throws IOException {
+        String emp = executaConsulta("data(/empresa/empleats/emp[@codi = \""
+                + codiEmp + "\"])");
+        return !emp.equals("");
+    }
+
     /**
      * Insereix un departament a la BD si el departament no existeix a la BD.
      * També insereix els empleats del departament a la BD que no estàn ja
-     * guardats
+     * guardats. La comprovació i les insercions es fan amb una sola consulta,
+     * de manera que dos processos no poden inserir el mateix departament.
      * @param departament Departament que es vol inserir a la BD
      */
     public void insertDept(Dept departament) {
-        String codiDep = departament.getCodi();
         try {
-            //Comprovam que el departament no es troba a la BD
-            if (existeixDept(codiDep)) {
-                throw new Exception("El departament ja existeis a la base de dades");
-            }
+            insereixDept(departament);
+        } catch (Exception ex) {
+            System.err.println(ex);
+        }
+    }
 
-            //Guarda els empleats que no estan inserits a la BD
-            List<Emp> empleatsAInserir = new ArrayList<>();
-            for (Emp empleat : departament.getEmpleats()) {
-                if (!existeixEmp(empleat.getCodi())) {
-                    empleatsAInserir.add(empleat);
-                }
-            }
+    /**
+     * Igual que insertDept, però llança els errors en lloc d'escriure'ls
+     * @param departament Departament que es vol inserir a la BD
+     * @throws Exception Si el departament ja existeix o hi ha un error amb la BD
+     */
+    void insereixDept(Dept departament) throws Exception {
+        String codiDep = departament.getCodi();
+        //Els nodes nous comencen a la versió 1
+        StringBuilder insercions = new StringBuilder();
+        insercions.append("insert node ").append(generateDeptXml(departament, 1L))
+                .append(" as last into /empresa/departaments");
 
-            //Guarda l'empresa a la BD
-            String insertDept = generateDeptXml(departament);
-            ClientQuery query = clientSession.query("insert node " + insertDept
-                    + " as last into /empresa/departaments");
-            query.execute();
-            query.close();
+        //Guarda els empleats que no estan inserits a la BD i retorna el seu
+        //codi amb update:output, perquè només aquests passen a la versió 1
+        for (Emp empleat : departament.getEmpleats()) {
+            insercions.append(",\nif (exists(/empresa/empleats/emp[@codi = \"")
+                    .append(empleat.getCodi()).append("\"])) then ()")
+                    .append("\nelse (insert node ").append(generateEmpXml(empleat, 1L))
+                    .append(" as last into /empresa/empleats, update:output(\"")
+                    .append(empleat.getCodi()).append("\"))");
+        }
 
-            //Guarda els empleats a la BD
-            if (empleatsAInserir.size() > 0) {
-                for (Emp empleat : empleatsAInserir) {
-                    String insertEmp = generateEmpXml(empleat);
-                    query = clientSession.query("insert node " + insertEmp
-                            + "as last into /empresa/empleats");
-                    query.execute();
-                    query.close();
-                }
+        //Comprovam que el departament no es troba a la BD i el guardam
+        String inserits = executaConsulta("if (exists(/empresa/departaments/dept[@codi = \""
+                + codiDep + "\"]))\nthen error(QName(\"\", \"" + ERR_JA_EXISTEIX
+                + "\"), \"El departament ja existeix a la base de dades\")\nelse ("
+                + insercions + ")");
+        escriptures++;
+        departament.setVersio(1L);
+
+        List<String> codisInserits = Arrays.asList(inserits.split("\\r?\\n"));
+        for (Emp empleat : departament.getEmpleats()) {
+            if (codisInserits.contains(empleat.getCodi())) {
+                empleat.setVersio(1L);
             }
-        } catch (Exception ex) {
-            System.err.println(ex);
         }
     }
 
     /**
-     * Elimina el departament de la BD i tots els seus empleats
+     * Elimina el departament de la BD i tots els seus empleats. Si el
+     * departament té versió, només s'elimina si la versió de la BD coincideix.
      * @param departament Departament a eliminar de la BD
      */
     public void deleteDept(Dept departament) {
-        String codiDep = departament.getCodi();
         try {
-            if (!existeixDept(codiDep)) {
-                throw new Exception("El departament no existeix a la BD");
-            }
-
-            //Elimina el departament de la BD
-            ClientQuery query = clientSession.query("delete node /empresa/departaments/dept[@codi=\""
-                    + codiDep + "\"]");
-            query.execute();
-            query.close();
-
-            //Elimina els empleats del departament
-            query = clientSession.query("for $empresa in /empresa/empleats/emp[@dept=\""
-                    + codiDep + "\"] return (delete node $empresa)");
-            query.execute();
-            query.close();
+            eliminaDept(departament);
         } catch (Exception ex) {
             System.err.println(ex);
         }
 
     }
 
+    /**
+     * Igual que deleteDept, però llança els errors en lloc d'escriure'ls
+     * @param departament Departament a eliminar de la BD
+     * @throws Exception Si el departament no existeix, ha canviat de versió o
+     * hi ha un error amb la BD
+     */
+    void eliminaDept(Dept departament) throws Exception {
+        String codiDep = departament.getCodi();
+        //Elimina el departament i els seus empleats de la BD
+        executaActualitzacio(condicioDept(codiDep, departament.getVersio())
+                + "(delete node $dept, delete node /empresa/empleats/emp[@dept = \""
+                + codiDep + "\"])");
+    }
+
     /**
      * Elimina un departament de la BD i assigna tots els seus empleats a un
-     * altre departament
+     * altre departament. La versió de cada empleat reassignat s'incrementa.
      * @param departament Departament a eliminar
      * @param departamentNou Departament on volem assignar els empleats del
      * departament eliminat
      */
     public void deleteDept(Dept departament, Dept departamentNou) {
-        String codiDep = departament.getCodi();
         try {
-            if (existeixDept(codiDep)) {
-                //Elimina el departament de la BD
-                ClientQuery query = clientSession.query("delete node /empresa/departaments/dept[@codi=\""
-                    + codiDep + "\"]");
-                query.execute();
-                query.close();
-
-                String codiDepNou = departamentNou.getCodi();
-                if (!existeixDept(codiDepNou)) {
-                    throw new Exception("El departament nou no existeix a la BD");
-                }
-                
-                query = clientSession.query("for $empleat in /empresa/empleats/emp[@dept = \""
-                        + codiDep + "\"]/@dept"
-                        + "\nreturn (replace value of node $empleat with \"" + codiDepNou + "\")");
-                query.execute();
-                query.close();
-            }
+            eliminaDept(departament, departamentNou);
         } catch (Exception ex) {
             System.err.println(ex);
         }
     }
+
+    /**
+     * Igual que deleteDept(Dept, Dept), però llança els errors en lloc
+     * d'escriure'ls. Si el departament a eliminar no existeix, no fa res.
+     * @param departament Departament a eliminar
+     * @param departamentNou Departament on volem assignar els empleats del
+     * departament eliminat
+     * @throws Exception Si el departament nou no existeix, el departament ha
+     * canviat de versió o hi ha un error amb la BD
+     */
+    void eliminaDept(Dept departament, Dept departamentNou) throws Exception {
+        String codiDep = departament.getCodi();
+        String codiDepNou = departamentNou.getCodi();
+        if (comprovaExisteixDept(codiDep)) {
+            executaActualitzacio(condicioDept(codiDep, departament.getVersio())
+                    + "if (empty(/empresa/departaments/dept[@codi = \"" + codiDepNou + "\"]))"
+                    + "\nthen error(QName(\"\", \"" + ERR_NO_EXISTEIX
+                    + "\"), \"El departament nou no existeix a la BD\")"
+                    + "\nelse (delete node $dept,"
+                    + "\nfor $empleat in /empresa/empleats/emp[@dept = \"" + codiDep + "\"]"
+                    + "\nreturn (replace value of node $empleat/@dept with \"" + codiDepNou + "\","
+                    + "\nif ($empleat/@versio)"
+                    + "\nthen replace value of node $empleat/@versio with xs:integer($empleat/@versio) + 1"
+                    + "\nelse insert node attribute versio {1} into $empleat))");
+        }
+    }
+
+    /**
+     * Actualitza el nom i la localitat d'un departament només si ningú l'ha
+     * modificat des que es va recuperar de la BD. Si l'actualització té èxit,
+     * la versió del departament s'incrementa.
+     * @param departament Departament amb les dades noves. Si no té versió, es
+     * considera la versió 0
+     * @throws ConflicteVersioException Si la versió de la BD no coincideix
+     * @throws Exception Si el departament no existeix o hi ha un error amb la BD
+     */
+    public void updateDept(Dept departament) throws Exception {
+        long versio = departament.getVersio() == null ? 0L : departament.getVersio();
+        executaActualitzacio(condicioDept(departament.getCodi(), versio)
+                + "replace node $dept with " + generateDeptXml(departament, versio + 1));
+        departament.setVersio(versio + 1);
+    }
+
+    /**
+     * Actualitza un empleat només si ningú l'ha modificat des que es va
+     * recuperar de la BD. Si l'actualització té èxit, la versió de l'empleat
+     * s'incrementa.
+     * @param empleat Empleat amb les dades noves. Si no té versió, es
+     * considera la versió 0
+     * @throws ConflicteVersioException Si la versió de la BD no coincideix
+     * @throws Exception Si l'empleat no existeix o hi ha un error amb la BD
+     */
+    public void updateEmp(Emp empleat) throws Exception {
+        long versio = empleat.getVersio() == null ? 0L : empleat.getVersio();
+        executaActualitzacio("let $emp := /empresa/empleats/emp[@codi = \""
+                + empleat.getCodi() + "\"]\nreturn "
+                + condicioVersio("$emp", versio, "L'empleat")
+                + "replace node $emp with " + generateEmpXml(empleat, versio + 1));
+        empleat.setVersio(versio + 1);
+    }
+
+    /**
+     * Genera l'inici d'una consulta que enllaça el departament a la variable
+     * $dept i comprova que existeix i que té la versió esperada.
+     * @param codiDep Codi del departament
+     * @param versio Versió esperada. Si és null, no es comprova la versió
+     * @return Inici de la consulta, que s'ha de completar amb l'expressió
+     * d'actualització
+     */
+    private String condicioDept(String codiDep, Long versio) {
+        return "let $dept := /empresa/departaments/dept[@codi = \"" + codiDep + "\"]\nreturn "
+                + condicioVersio("$dept", versio, "El departament");
+    }
+
+    /**
+     * Genera les condicions que llancen un error si el node no existeix o si
+     * la seva versió no és l'esperada.
+     * @param variable Variable XQuery que conté el node
+     * @param versio Versió esperada. Si és null, no es comprova la versió
+     * @param entitat Nom de l'entitat pels missatges d'error
+     * @return Condicions XQuery acabades amb un "else" obert
+     */
+    private String condicioVersio(String variable, Long versio, String entitat) {
+        String condicio = "if (empty(" + variable + "))\nthen error(QName(\"\", \""
+                + ERR_NO_EXISTEIX + "\"), \"" + entitat + " no existeix a la BD\")\n";
+        if (versio != null) {
+            condicio += "else if (xs:integer((" + variable + "/@versio, 0)[1]) != " + versio
+                    + ")\nthen error(QName(\"\", \"" + ERR_CONFLICTE + "\"), \""
+                    + entitat + " s'ha modificat des que es va recuperar\")\n";
+        }
+        return condicio + "else ";
+    }
+
+    /**
+     * Executa una consulta d'actualització. BaseX executa cada consulta com una
+     * única transacció, així que les comprovacions i les modificacions es fan
+     * de forma atòmica.
+     * @param xquery Consulta a executar
+     * @throws ConflicteVersioException Si la consulta ha detectat un conflicte
+     * de versions
+     * @throws IOException Si hi ha qualsevol altre error
+     */
+    private void executaActualitzacio(String xquery) throws ConflicteVersioException, IOException {
+        ClientQuery query = sessio().query(xquery);
+        try {
+            query.execute();
+            marcaConsulta();
+            escriptures++;
+        } catch (IOException ex) {
+            if (ex.getMessage() != null && ex.getMessage().contains(ERR_CONFLICTE)) {
+                throw new ConflicteVersioException(ex.getMessage());
+            }
+            throw ex;
+        } finally {
+            query.close();
+        }
+    }
     
     /**Reemplaça un departament a la BD per un altre. Insereix el departament nou
      * i elimina el departament reemplaçat, assignant els empleats del departament
@@ -0,0 +1,217 @@
+package gestorbasex;
+
+import empresa.Dept;
+import empresa.Emp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gestor que serveix les lectures de GestorDB des d'una CacheEmpresa i
+ * invalida les entrades afectades per cada escriptura. La cache només
+ * coneix les escriptures fetes a través d'aquest gestor; les actualitzacions
+ * condicionals detecten igualment els canvis d'altres processos.
+ * 
+ * La sessió de GestorDB no es pot fer servir des de diversos fils alhora, així
+ * que totes les operacions estan sincronitzades i s'executen d'una en una. Per
+ * atendre diversos fils en paral·lel cal un gestor per fil, que poden
+ * compartir la mateixa CacheEmpresa.
+ * 
+ * Les comprovacions d'existència sempre es fan a la BD: la cache pot guardar
+ * un objecte que un altre gestor ja ha eliminat.
+ */
+public class GestorDBAmbCache {
+
+    private final GestorDB gestor;
+    private final CacheEmpresa cache;
+
+    public GestorDBAmbCache(GestorDB gestor, CacheEmpresa cache) {
+        this.gestor = gestor;
+        this.cache = cache;
+    }
+
+    public GestorDB getGestor() {
+        return gestor;
+    }
+
+    public CacheEmpresa getCache() {
+        return cache;
+    }
+
+    public synchronized void tancarSessio() {
+        gestor.tancarSessio();
+    }
+
+    /**
+     * Recupera un empleat de la cache o, si no hi és, de la BD
+     * @param codiEmp Codi de l'empleat que volem recuperar.
+     * @return Empleat amb el codi passat per paràmetre
+     * @throws Exception Si l'empleat no existeix
+     */
+    public synchronized Emp getEmpleat(String codiEmp) throws Exception {
+        Emp empleat = cache.getEmp(codiEmp);
+        if (empleat == null) {
+            empleat = gestor.getEmpleat(codiEmp);
+            cache.put(empleat);
+        }
+        return empleat;
+    }
+
+    /**
+     * Recupera un departament sense empleats de la cache o, si no hi és, de
+     * la BD
+     * @param codiDept Codi del departament que volem recuperar
+     * @return Objecte Departament, o null si no existeix
+     */
+    public synchronized Dept getDeptSenseEmp(String codiDept) {
+        Dept departament = cache.getDept(codiDept);
+        if (departament == null) {
+            departament = gestor.getDeptSenseEmp(codiDept);
+            if (departament != null) {
+                cache.put(departament);
+            }
+        }
+        return departament;
+    }
+
+    /**
+     * Recupera un departament amb tots els seus empleats. Els codis dels
+     * empleats sempre es consulten a la BD; els empleats que no són a la cache
+     * es recuperen tots junts amb una sola petició.
+     * @param codiDept Codi del departament que volem recuperar
+     * @return Objecte Departament amb tots els seus empleats, o null si no
+     * existeix
+     */
+    public synchronized Dept getDeptAmbEmp(String codiDept) {
+        Dept departament = getDeptSenseEmp(codiDept);
+        if (departament == null) {
+            return null;
+        }
+        try {
+            List<String> codis = gestor.getCodisEmpleats(codiDept);
+            List<Emp> empleats = new ArrayList<>();
+            List<String> codisAbsents = new ArrayList<>();
+            for (String codi : codis) {
+                Emp empleat = cache.getEmp(codi);
+                empleats.add(empleat);
+                if (empleat == null) {
+                    codisAbsents.add(codi);
+                }
+            }
+
+            //Omple els buits amb els empleats recuperats de la BD
+            List<Emp> recuperats = gestor.getEmpleats(codisAbsents);
+            int seguent = 0;
+            for (int i = 0; i < empleats.size(); i++) {
+                if (empleats.get(i) == null) {
+                    Emp empleat = recuperats.get(seguent++);
+                    cache.put(empleat);
+                    empleats.set(i, empleat);
+                }
+            }
+            departament.setEmpleats(empleats);
+        } catch (Exception ex) {
+            System.err.println(ex);
+        }
+        return departament;
+    }
+
+    public synchronized boolean existeixDept(String codiDept) {
+        return gestor.existeixDept(codiDept);
+    }
+
+    public synchronized boolean existeixEmp(String codiEmp) {
+        return gestor.existeixEmp(codiEmp);
+    }
+
+    /**
+     * Insereix un departament i els seus empleats. Veure
+     * {@link GestorDB#insertDept(Dept)}
+     * @param departament Departament que es vol inserir a la BD
+     */
+    public synchronized void insertDept(Dept departament) {
+        gestor.insertDept(departament);
+        cache.invalidaDept(departament.getCodi());
+        for (Emp empleat : departament.getEmpleats()) {
+            cache.invalidaEmp(empleat.getCodi());
+        }
+    }
+
+    /**
+     * Elimina un departament i els seus empleats. Veure
+     * {@link GestorDB#deleteDept(Dept)}
+     * @param departament Departament a eliminar de la BD
+     */
+    public synchronized void deleteDept(Dept departament) {
+        List<String> codis = codisEmpleats(departament.getCodi());
+        gestor.deleteDept(departament);
+        invalida(departament.getCodi(), codis);
+    }
+
+    /**
+     * Elimina un departament i assigna els seus empleats a un altre. Veure
+     * {@link GestorDB#deleteDept(Dept, Dept)}
+     * @param departament Departament a eliminar
+     * @param departamentNou Departament on volem assignar els empleats
+     */
+    public synchronized void deleteDept(Dept departament, Dept departamentNou) {
+        List<String> codis = codisEmpleats(departament.getCodi());
+        gestor.deleteDept(departament, departamentNou);
+        invalida(departament.getCodi(), codis);
+    }
+
+    public synchronized void replaceDept(Dept depAInserir, Dept depAReemplacar) {
+        insertDept(depAInserir);
+        deleteDept(depAReemplacar, depAInserir);
+    }
+
+    /**
+     * Actualització condicional d'un departament. Veure
+     * {@link GestorDB#updateDept(Dept)}
+     * @param departament Departament amb les dades noves
+     * @throws ConflicteVersioException Si la versió de la BD no coincideix
+     * @throws Exception Si el departament no existeix o hi ha un error amb la BD
+     */
+    public synchronized void updateDept(Dept departament) throws Exception {
+        try {
+            gestor.updateDept(departament);
+            cache.put(departament);
+        } catch (ConflicteVersioException ex) {
+            //La còpia de la cache és antiga
+            cache.invalidaDept(departament.getCodi());
+            throw ex;
+        }
+    }
+
+    /**
+     * Actualització condicional d'un empleat. Veure
+     * {@link GestorDB#updateEmp(Emp)}
+     * @param empleat Empleat amb les dades noves
+     * @throws ConflicteVersioException Si la versió de la BD no coincideix
+     * @throws Exception Si l'empleat no existeix o hi ha un error amb la BD
+     */
+    public synchronized void updateEmp(Emp empleat) throws Exception {
+        try {
+            gestor.updateEmp(empleat);
+            cache.put(empleat);
+        } catch (ConflicteVersioException ex) {
+            cache.invalidaEmp(empleat.getCodi());
+            throw ex;
+        }
+    }
+
+    private List<String> codisEmpleats(String codiDept) {
+        try {
+            return gestor.getCodisEmpleats(codiDept);
+        } catch (Exception ex) {
+            System.err.println(ex);
+            return new ArrayList<>();
+        }
+    }
+
+    private void invalida(String codiDept, List<String> codisEmp) {
+        cache.invalidaDept(codiDept);
+        for (String codi : codisEmp) {
+            cache.invalidaEmp(codi);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package gestorbasex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.basex.api.client.ClientQuery;
+
+/**
+ * Agrupa diverses consultes de lectura independents i les envia a la BD en una
+ * sola consulta XQuery, de manera que només es paga la latència de la xarxa un
+ * cop per lot. Cada consulta afegida obté un Future amb el seu resultat, que
+ * es completa quan s'executa el lot. Si es demana un resultat abans d'executar
+ * el lot, get() i join() l'executen en aquell moment.
+ * 
+ * Les consultes han de ser expressions de lectura sense pròleg (sense
+ * declaracions). Un lot no és segur entre fils, igual que la ClientSession del
+ * gestor que fa servir.
+ */
+public class LotConsultes {
+
+    private final GestorDB gestor;
+    private final List<String> consultes = new ArrayList<>();
+    private final List<CompletableFuture<String>> resultats = new ArrayList<>();
+
+    /**
+     * Resultat d'una consulta del lot que executa el lot si encara no s'ha
+     * executat quan se'n demana el valor
+     */
+    private class Resultat extends CompletableFuture<String> {
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            executaSiCal();
+            return super.get();
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            executaSiCal();
+            return super.get(timeout, unit);
+        }
+
+        @Override
+        public String join() {
+            executaSiCal();
+            return super.join();
+        }
+
+        private void executaSiCal() {
+            if (!isDone()) {
+                try {
+                    executa();
+                } catch (IOException ex) {
+                    //executa ja ha completat aquest resultat amb l'excepció
+                }
+            }
+        }
+    }
+
+    LotConsultes(GestorDB gestor) {
+        this.gestor = gestor;
+    }
+
+    /**
+     * Afegeix una consulta al lot
+     * @param xquery Expressió XQuery de lectura
+     * @return Future amb el resultat de la consulta: el valor de text (no
+     * l'XML serialitzat) de cada ítem, separats per salts de línia
+     */
+    public Future<String> afegeix(String xquery) {
+        CompletableFuture<String> resultat = new Resultat();
+        consultes.add(xquery);
+        resultats.add(resultat);
+        return resultat;
+    }
+
+    /**
+     * @return Nombre de consultes pendents d'executar
+     */
+    public int mida() {
+        return consultes.size();
+    }
+
+    /**
+     * Envia totes les consultes pendents en una sola consulta i completa els
+     * Future de cadascuna. Si la consulta falla, tots els Future pendents es
+     * completen amb l'excepció.
+     * @throws IOException Si hi ha un error amb la BD
+     */
+    public void executa() throws IOException {
+        if (consultes.isEmpty()) {
+            return;
+        }
+        //Cada consulta es converteix en un únic ítem de tipus string, així el
+        //resultat i-èssim de la seqüència correspon a la consulta i-èssima
+        StringBuilder xquery = new StringBuilder("(");
+        for (int i = 0; i < consultes.size(); i++) {
+            if (i > 0) {
+                xquery.append(",\n");
+            }
+            xquery.append("string-join(for $item in (").append(consultes.get(i))
+                    .append(") return string($item), \"&#10;\")");
+        }
+        xquery.append(")");
+
+        List<CompletableFuture<String>> pendents = new ArrayList<>(resultats);
+        consultes.clear();
+        resultats.clear();
+        try {
+            ClientQuery query = gestor.getClientSession().query(xquery.toString());
+            try {
+                int i = 0;
+                while (query.more() && i < pendents.size()) {
+                    pendents.get(i++).complete(query.next());
+                }
+                if (i != pendents.size()) {
+                    throw new IOException("El lot ha retornat " + i + " resultats de "
+                            + pendents.size());
+                }
+                gestor.marcaConsulta();
+            } finally {
+                query.close();
+            }
+        } catch (IOException ex) {
+            for (CompletableFuture<String> resultat : pendents) {
+                resultat.completeExceptionally(ex);
+            }
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package gestorbasex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Magatzem de registres fora del heap, en memòria directa o en un fitxer
+ * mapejat a memòria. Els registres s'escriuen un darrere l'altre en un buffer
+ * circular: quan s'arriba al final es torna a començar i es descarten els
+ * registres més antics que queden trepitjats (expulsió FIFO). Al heap només
+ * hi queda l'índex de les posicions.
+ */
+public class MagatzemOffHeap implements Closeable {
+
+    /**
+     * Posició d'un registre dins del buffer
+     */
+    private static class Posicio {
+        private final int inici;
+        private final int longitud;
+
+        Posicio(int inici, int longitud) {
+            this.inici = inici;
+            this.longitud = longitud;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final FileChannel canal;
+    //Ordenat per ordre d'escriptura, el primer és el registre més antic
+    private final Map<String, Posicio> index = new LinkedHashMap<>();
+    private int cap;
+    private long expulsats;
+
+    private MagatzemOffHeap(ByteBuffer buffer, FileChannel canal) {
+        this.buffer = buffer;
+        this.canal = canal;
+    }
+
+    /**
+     * Crea un magatzem en memòria directa
+     * @param capacitat Mida del buffer en bytes
+     * @return Magatzem buit
+     */
+    public static MagatzemOffHeap directe(int capacitat) {
+        return new MagatzemOffHeap(ByteBuffer.allocateDirect(capacitat), null);
+    }
+
+    /**
+     * Crea un magatzem sobre un fitxer mapejat a memòria. El contingut
+     * anterior del fitxer no es fa servir.
+     * @param fitxer Fitxer on es mapeja el buffer
+     * @param capacitat Mida del buffer en bytes
+     * @return Magatzem buit
+     * @throws IOException Si no es pot crear o mapejar el fitxer
+     */
+    public static MagatzemOffHeap mapejat(Path fitxer, int capacitat) throws IOException {
+        FileChannel canal = FileChannel.open(fitxer, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new MagatzemOffHeap(canal.map(FileChannel.MapMode.READ_WRITE, 0, capacitat), canal);
+    }
+
+    /**
+     * Guarda un registre, reemplaçant el que hi hagués amb la mateixa clau
+     * @param clau Clau del registre
+     * @param dades Contingut del registre
+     * @return false si el registre és més gran que el magatzem
+     */
+    public synchronized boolean guarda(String clau, byte[] dades) {
+        if (dades.length > buffer.capacity()) {
+            return false;
+        }
+        index.remove(clau);
+        if (cap + dades.length > buffer.capacity()) {
+            //Els registres entre el cap i el final són els més antics i ja no
+            //es poden aprofitar
+            int finalAnterior = cap;
+            cap = 0;
+            expulsa(p -> p.inici >= finalAnterior);
+        }
+        int finalNou = cap + dades.length;
+        expulsa(p -> p.inici < finalNou && p.inici + p.longitud > cap);
+
+        ByteBuffer vista = buffer.duplicate();
+        vista.position(cap);
+        vista.put(dades);
+        index.put(clau, new Posicio(cap, dades.length));
+        cap = finalNou;
+        return true;
+    }
+
+    /**
+     * Elimina els registres més antics mentre compleixin la condició
+     */
+    private void expulsa(Predicate<Posicio> condicio) {
+        Iterator<Posicio> posicions = index.values().iterator();
+        while (posicions.hasNext() && condicio.test(posicions.next())) {
+            posicions.remove();
+            expulsats++;
+        }
+    }
+
+    /**
+     * @param clau Clau del registre
+     * @return Còpia del registre, o null si no hi és
+     */
+    public synchronized byte[] llegeix(String clau) {
+        Posicio posicio = index.get(clau);
+        if (posicio == null) {
+            return null;
+        }
+        byte[] dades = new byte[posicio.longitud];
+        ByteBuffer vista = buffer.duplicate();
+        vista.position(posicio.inici);
+        vista.get(dades);
+        return dades;
+    }
+
+    public synchronized boolean conte(String clau) {
+        return index.containsKey(clau);
+    }
+
+    public synchronized void elimina(String clau) {
+        index.remove(clau);
+    }
+
+    public synchronized void buida() {
+        index.clear();
+        cap = 0;
+    }
+
+    public synchronized int getRegistres() {
+        return index.size();
+    }
+
+    public synchronized long getExpulsats() {
+        return expulsats;
+    }
+
+    public int getCapacitat() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.clear();
+        if (canal != null) {
+            canal.close();
+        }
+    }
+}
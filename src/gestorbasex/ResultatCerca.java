@@ -0,0 +1,42 @@
+package gestorbasex;
+
+/**
+ * Projecció lleugera d'un resultat de cerca. Només conté el codi de l'entitat
+ * trobada, el camp on s'ha trobat el text i la puntuació de BaseX, de manera
+ * que no cal recuperar l'empleat o el departament sencer.
+ */
+public class ResultatCerca {
+    private final String codi;
+    private final String camp;
+    private final String valor;
+    private final double puntuacio;
+
+    public ResultatCerca(String codi, String camp, String valor, double puntuacio) {
+        this.codi = codi;
+        this.camp = camp;
+        this.valor = valor;
+        this.puntuacio = puntuacio;
+    }
+
+    public String getCodi() {
+        return codi;
+    }
+
+    public String getCamp() {
+        return camp;
+    }
+
+    public String getValor() {
+        return valor;
+    }
+
+    public double getPuntuacio() {
+        return puntuacio;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultatCerca{" + "codi = " + codi + ", camp = " + camp + ", valor = " + valor
+                + ", puntuacio = " + puntuacio + '}';
+    }
+}
@@ -0,0 +1,21 @@
+package gestorbasex;
+
+import java.io.IOException;
+
+/**
+ * Excepció que es llança quan un gestor no té connexió amb la BD perquè
+ * encara no l'ha pogut obrir o perquè espera per tornar a intentar-ho. La
+ * consulta no s'ha arribat a enviar i el gestor es pot continuar fent servir.
+ */
+public class SenseConnexioException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SenseConnexioException(String message) {
+        super(message);
+    }
+
+    public SenseConnexioException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
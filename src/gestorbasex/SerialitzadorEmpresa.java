@@ -0,0 +1,99 @@
+package gestorbasex;
+
+import empresa.Dept;
+import empresa.Emp;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Converteix empleats i departaments (sense els seus empleats) en registres
+ * binaris compactes per guardar-los fora del heap. Cada registre comença amb
+ * un byte que indica el tipus i cada camp de text va precedit d'un booleà que
+ * indica si hi és. També es fa amb els camps obligatoris, perquè els objectes
+ * creats amb alguns constructors els poden tenir a null.
+ */
+public class SerialitzadorEmpresa {
+
+    private static final byte TIPUS_EMP = 1;
+    private static final byte TIPUS_DEPT = 2;
+
+    private SerialitzadorEmpresa() {
+    }
+
+    public static byte[] serialitza(Emp empleat) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TIPUS_EMP);
+        escriuText(out, empleat.getCodi());
+        escriuText(out, empleat.getCodiDep());
+        escriuText(out, empleat.getCodiCap());
+        escriuText(out, empleat.getCognom());
+        escriuText(out, empleat.getOfici());
+        escriuText(out, empleat.getDataAlta());
+        escriuLong(out, empleat.getSalari());
+        escriuLong(out, empleat.getComissio());
+        escriuLong(out, empleat.getVersio());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static byte[] serialitza(Dept departament) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TIPUS_DEPT);
+        escriuText(out, departament.getCodi());
+        escriuText(out, departament.getNom());
+        escriuText(out, departament.getLocalitat());
+        escriuLong(out, departament.getVersio());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reconstrueix un objecte a partir d'un registre
+     * @param dades Registre generat per serialitza
+     * @return Emp o Dept, segons el tipus del registre
+     * @throws IOException Si el registre no és vàlid
+     */
+    public static Object deserialitza(byte[] dades) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(dades));
+        byte tipus = in.readByte();
+        if (tipus == TIPUS_EMP) {
+            Emp empleat = new Emp(llegeixText(in), llegeixText(in), llegeixText(in), llegeixText(in),
+                    llegeixText(in), llegeixText(in), llegeixLong(in), llegeixLong(in));
+            empleat.setVersio(llegeixLong(in));
+            return empleat;
+        }
+        if (tipus == TIPUS_DEPT) {
+            Dept departament = new Dept(llegeixText(in), llegeixText(in), llegeixText(in));
+            departament.setVersio(llegeixLong(in));
+            return departament;
+        }
+        throw new IOException("Tipus de registre desconegut: " + tipus);
+    }
+
+    private static void escriuText(DataOutputStream out, String valor) throws IOException {
+        out.writeBoolean(valor != null);
+        if (valor != null) {
+            out.writeUTF(valor);
+        }
+    }
+
+    private static void escriuLong(DataOutputStream out, Long valor) throws IOException {
+        out.writeBoolean(valor != null);
+        if (valor != null) {
+            out.writeLong(valor);
+        }
+    }
+
+    private static String llegeixText(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static Long llegeixLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+}